@@ -5,6 +5,8 @@ import javafx.fxml.FXMLLoader;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.stage.Stage;
+import srcprotect.certs.CertificateAuthority;
+import srcprotect.utils.CodeCompiler;
 import srcprotect.utils.logging.CustomLogger;
 
 /**
@@ -22,12 +24,22 @@ public class Main extends Application {
     public void start(Stage primaryStage) throws Exception {
         Parent root = FXMLLoader.load(getClass().getResource("ui/HomePage.fxml"));
         CustomLogger.setupLogger();
+        CodeCompiler.warmUp();
 
         primaryStage.setTitle("SRCPROTECT");
         primaryStage.setScene(new Scene(root));
         primaryStage.show();
     }
 
+    /**
+     * Stops the services started by the Certificate Authority and the compiler, so that the application can exit
+     */
+    @Override
+    public void stop() {
+        CertificateAuthority.shutdown();
+        CodeCompiler.shutdown();
+    }
+
     /**
      * Main method of the application
      *
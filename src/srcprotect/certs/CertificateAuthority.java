@@ -1,26 +1,29 @@
 package srcprotect.certs;
 
+import org.bouncycastle.asn1.ASN1Integer;
 import org.bouncycastle.asn1.ASN1ObjectIdentifier;
 import org.bouncycastle.asn1.x500.X500Name;
 import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.CRLNumber;
+import org.bouncycastle.asn1.x509.Extension;
 import org.bouncycastle.asn1.x509.KeyUsage;
 import org.bouncycastle.cert.CertIOException;
 import org.bouncycastle.cert.X509CRLHolder;
 import org.bouncycastle.cert.X509CertificateHolder;
 import org.bouncycastle.cert.jcajce.JcaX509CRLConverter;
 import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509ExtensionUtils;
 import org.bouncycastle.cert.jcajce.JcaX509v2CRLBuilder;
 import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
-import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.openssl.PEMEncryptor;
 import org.bouncycastle.openssl.jcajce.JcaMiscPEMGenerator;
 import org.bouncycastle.openssl.jcajce.JcaPEMWriter;
 import org.bouncycastle.openssl.jcajce.JcePEMEncryptorBuilder;
 import org.bouncycastle.operator.ContentSigner;
 import org.bouncycastle.operator.OperatorCreationException;
-import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
 import org.bouncycastle.util.io.pem.PemObject;
 import org.bouncycastle.util.io.pem.PemWriter;
+import srcprotect.crypt.CryptoContext;
 import srcprotect.ui.PopUp;
 import srcprotect.utils.Algorithms;
 import srcprotect.utils.Files;
@@ -28,9 +31,22 @@ import srcprotect.utils.logging.CustomLogger;
 
 import java.io.*;
 import java.math.BigInteger;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.*;
 import java.security.cert.*;
+import java.security.spec.ECGenParameterSpec;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 
 /**
@@ -42,12 +58,73 @@ public class CertificateAuthority {
     private static X509Certificate CACertificate;
     private static X500Name CAName;
     private static X509CRL CRL;
+    private static X509CRL deltaCRL;
+    private static BigInteger baseCRLNumber, lastCRLNumber;
+    private static long basePublishedAt;
+
+    private static KeyPairPool keyPairPool;
+    private static SerialNumberGenerator serialNumbers;
+    private static OCSPResponder ocspResponder;
+    private static OCSPClient ocspClient;
+
+    private static final ThreadLocal<ContentSigner> CA_SIGNER = new ThreadLocal<>();
+
+    private static final RevocationIndex REVOCATIONS = new RevocationIndex();
+    private static final Set<BigInteger> DELTA_SERIALS = ConcurrentHashMap.newKeySet();
+    private static final AtomicBoolean CRL_CHANGED = new AtomicBoolean();
+    private static final ScheduledExecutorService CRL_PUBLISHER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread publisher = new Thread(runnable, "crl-publisher");
+        publisher.setDaemon(true);
+        return publisher;
+    });
+
+    private static final ExecutorService ISSUERS = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(),
+            runnable -> {
+                Thread issuer = new Thread(runnable, "certificate-issuer");
+                issuer.setDaemon(true);
+                return issuer;
+            }
+    );
+
+    /**
+     * Subject of a certificate issued in bulk, along with its public key
+     */
+    public static class CertificateRequest {
+
+        private final String subjectName;
+        private final PublicKey publicKey;
+
+        public CertificateRequest(String subjectName, PublicKey publicKey) {
+            this.subjectName = subjectName;
+            this.publicKey = publicKey;
+        }
+
+        /**
+         * Getter for the subject name
+         *
+         * @return common name of the subject
+         */
+        public String getSubjectName() {
+            return subjectName;
+        }
+
+        /**
+         * Getter for the public key
+         *
+         * @return subject's public key
+         */
+        public PublicKey getPublicKey() {
+            return publicKey;
+        }
+
+    }
 
     /**
      * Tries to read Certificate Authority details from the file, creates a new one if unable to read
      */
     public static void initialize() {
-        Security.addProvider(new BouncyCastleProvider());
+        CryptoContext.initialize();
 
         File CAKeyPairLocation = Files.getCAKeyLocation();
         File CACertificateLocation = Files.getCACertificateLocation();
@@ -56,6 +133,12 @@ public class CertificateAuthority {
                 "CN=SRCPROTECT Root CA,O=SRCPROTECT"        //CN = Common Name, O = Organization
         );
 
+        try {
+            serialNumbers = new SerialNumberGenerator(Files.getSerialNumberFile());
+        } catch (IOException exception) {
+            CustomLogger.log(Level.SEVERE, "Unable to read serial number file, new certificates cannot be issued", exception);
+        }
+
         try {
             retrieveCACredentialsFromFiles(CAKeyPairLocation, CACertificateLocation);
         } catch (CertificateException exception) {
@@ -65,15 +148,162 @@ public class CertificateAuthority {
             CustomLogger.log(Level.WARNING, "An I/O error occurred while opening CA files, the file cannot be accessed properly", exception);
             generateCACredentials();
         }
+
+        if (CACertificate == null) {
+            CustomLogger.log(Level.SEVERE, "CA certificate is not available, certificates and CRLs cannot be issued",
+                    new IllegalStateException("CA certificate could not be issued"));
+            return;
+        }
+
+        /* Started only after CA credentials are ready, so that it does not compete with generating the CA key */
+        keyPairPool = new KeyPairPool(
+                Integer.getInteger("srcprotect.keypool.size", 4),
+                Math.max(1, Runtime.getRuntime().availableProcessors() / 2)
+        );
+
+        /* Revocations the previous run stored but did not publish are published with the next batch */
+        try {
+            for (Map.Entry<BigInteger, RevocationIndex.Revocation> revocation
+                    : REVOCATIONS.openLog(Files.getRevocationLogFile()).entrySet()) {
+                RevocationIndex.Revocation details = revocation.getValue();
+                if (REVOCATIONS.add(revocation.getKey(), details.getRevocationDate(), details.getReason())) {
+                    DELTA_SERIALS.add(revocation.getKey());
+                    CRL_CHANGED.set(true);
+                }
+            }
+        } catch (IOException exception) {
+            CustomLogger.log(Level.SEVERE, "Unable to read revocation log, unpublished revocations might be lost", exception);
+        }
+
+        /* Revocations are stored right away but published in batches, whatever is still pending gets published on exit */
+        long publishingPeriod = Long.getLong("srcprotect.crl.period", 30);
+        CRL_PUBLISHER.scheduleWithFixedDelay(CertificateAuthority::publishCRL, publishingPeriod, publishingPeriod, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(CertificateAuthority::publishCRL));
+
+        startOCSP();
+    }
+
+    /**
+     * Starts the OCSP responder, unless another instance on the same host has already started it. In that case the
+     * revocation state is checked with the responder of that instance, and only that instance publishes the CRLs, so
+     * that the instances do not overwrite each other's CRLs. The revocations of this instance reach it through the
+     * revocation log shared by all of the instances
+     */
+    private static void startOCSP() {
+        int port = Integer.getInteger("srcprotect.ocsp.port", 8765);
+        long validity = TimeUnit.SECONDS.toMillis(Long.getLong("srcprotect.ocsp.validity", 60));
+
+        try {
+            ocspResponder = new OCSPResponder(port, CACertificate, CertificateAuthority::getCASigner, REVOCATIONS, validity);
+            ocspResponder.start();
+
+            /* Revocations of the other instances reach the responder through the revocation log they append to */
+            long mergingPeriod = Long.getLong("srcprotect.ocsp.merge", 5);
+            CRL_PUBLISHER.scheduleWithFixedDelay(CertificateAuthority::mergeLoggedRevocations, mergingPeriod, mergingPeriod, TimeUnit.SECONDS);
+            return;
+        } catch (BindException exception) {
+            ocspResponder = null;
+        } catch (IOException exception) {
+            CustomLogger.log(Level.WARNING, "Unable to start OCSP responder, revocation state is not shared", exception);
+            return;
+        }
+
+        try {
+            ocspClient = new OCSPClient(
+                    new URL("http", InetAddress.getLoopbackAddress().getHostAddress(), port, "/"),
+                    CACertificate,
+                    validity,
+                    Integer.getInteger("srcprotect.ocsp.timeout", 500)
+            );
+        } catch (IOException exception) {
+            CustomLogger.log(Level.WARNING, "Unable to create OCSP client, revocation state is not shared", exception);
+        }
+    }
+
+    /**
+     * Stops the OCSP responder if this instance started it
+     */
+    public static void shutdown() {
+        if (ocspResponder != null) {
+            ocspResponder.stop();
+        }
     }
 
     /**
-     * @return Certificate Revocation List - a list containing all of the revoked certificates
+     * @return Certificate Revocation List - the latest published base list of the revoked certificates,
+     * does not contain the revocations published in the delta CRL or not published yet
      */
     public static X509CRL getCRL() {
         return CRL;
     }
 
+    /**
+     * @return delta CRL - the latest published list of the certificates revoked since the base CRL,
+     * or null if none have been published since
+     */
+    public static X509CRL getDeltaCRL() {
+        return deltaCRL;
+    }
+
+    /**
+     * Checks whether the certificate is revoked, including revocations not published in the CRL yet
+     * and revocations made by the other instances on the same host
+     *
+     * @param certificate certificate to be checked
+     * @return true if the certificate is revoked, false otherwise
+     */
+    public static boolean isRevoked(X509Certificate certificate) {
+        return getRevocation(certificate) != null;
+    }
+
+    /**
+     * Gets the reason the certificate was revoked for
+     *
+     * @param certificate revoked certificate
+     * @return reason of revocation, or null if the certificate is not revoked
+     */
+    public static CRLReason getRevocationReason(X509Certificate certificate) {
+        RevocationIndex.Revocation revocation = getRevocation(certificate);
+        return revocation != null ? revocation.getReason() : null;
+    }
+
+    /**
+     * Looks the certificate up in the local revocation index, then asks the OCSP responder of the other instance.
+     * If the responder cannot be reached, the published CRLs and the revocation log are checked instead, and if they
+     * cannot be read either, the certificate is treated as revoked
+     *
+     * @param certificate certificate to be checked
+     * @return details about the revocation, or null if the certificate is not revoked
+     */
+    private static RevocationIndex.Revocation getRevocation(X509Certificate certificate) {
+        RevocationIndex.Revocation revocation = REVOCATIONS.get(certificate.getSerialNumber());
+        if (revocation != null || ocspClient == null) {
+            return revocation;
+        }
+
+        try {
+            return ocspClient.getRevocation(certificate);
+        } catch (IOException exception) {
+            CustomLogger.log(Level.WARNING, "No valid answer from the OCSP responder, checking the published revocations instead", exception);
+        }
+
+        for (File location : new File[]{Files.getCRLFile(), Files.getDeltaCRLFile()}) {
+            X509CRL crl = loadCRL(location);
+            if (crl != null) {
+                indexRevokedCertificates(crl, false);
+            }
+        }
+        try {
+            for (Map.Entry<BigInteger, RevocationIndex.Revocation> logged : REVOCATIONS.readLog().entrySet()) {
+                REVOCATIONS.add(logged.getKey(), logged.getValue().getRevocationDate(), logged.getValue().getReason());
+            }
+        } catch (IOException exception) {
+            CustomLogger.log(Level.SEVERE, "Unable to read revocation log, the certificate is treated as revoked", exception);
+            return new RevocationIndex.Revocation(new Date(), CRLReason.UNSPECIFIED);
+        }
+        return REVOCATIONS.get(certificate.getSerialNumber());
+    }
+
     /**
      * Loads CA key and certificate from designated files
      *
@@ -94,6 +324,7 @@ public class CertificateAuthority {
      */
     private static void generateCACredentials() {
         CAKeyPair = generateKeyPair();
+        CA_SIGNER.remove();
         storeKey(
                 Files.getCAKeyLocation(),
                 "CAPasswordShouldBeStoredOtherwise",
@@ -105,35 +336,151 @@ public class CertificateAuthority {
                 CAKeyPair.getPublic(),
                 true
         );
+        if (CACertificate == null) {
+            return;
+        }
         CRL = generateCRL();
-        storeCRL();
     }
 
     /**
-     * Generates a key pair for the asymmetric algorithm used to digitally sign content
+     * Generates a key pair for the asymmetric algorithm used to digitally sign content, using the selected key profile
      *
-     * @return 3072bit key, or null if the algorithm is not recognized
+     * @return 3072bit RSA key or P-256 EC key, or null if the algorithm is not recognized
      */
     public static KeyPair generateKeyPair() {
+        return generateKeyPair(Algorithms.getKeyProfile());
+    }
+
+    /**
+     * Generates a key pair for the asymmetric algorithm used to digitally sign content
+     *
+     * @param profile key profile of the generated key pair
+     * @return 3072bit RSA key or P-256 EC key, or null if the algorithm is not recognized
+     */
+    public static KeyPair generateKeyPair(Algorithms.KeyProfile profile) {
         try {
-            KeyPairGenerator generator = KeyPairGenerator.getInstance(Algorithms.ASYMMETRIC_KEY_ALGORITHM);
-            generator.initialize(3072);
+            KeyPairGenerator generator;
+            if (profile == Algorithms.KeyProfile.EC) {
+                generator = KeyPairGenerator.getInstance(Algorithms.EC_KEY_ALGORITHM);
+                generator.initialize(new ECGenParameterSpec(Algorithms.EC_CURVE));
+            } else {
+                generator = KeyPairGenerator.getInstance(Algorithms.ASYMMETRIC_KEY_ALGORITHM);
+                generator.initialize(3072);
+            }
             return generator.generateKeyPair();
         } catch (NoSuchAlgorithmException exception) {
             CustomLogger.log(Level.WARNING, "Specified algorithm does not exist, unable to generate key pair, returned null", exception);
             return null;
+        } catch (InvalidAlgorithmParameterException exception) {
+            CustomLogger.log(Level.WARNING, "Specified curve is not supported, unable to generate key pair, returned null", exception);
+            return null;
         }
     }
 
+    /**
+     * Hands out a pre-generated key pair from the pool, generating one right away if the pool is empty or not started yet
+     *
+     * @return key of the selected key profile, or null if the algorithm is not recognized
+     */
+    public static KeyPair takeKeyPair() {
+        return keyPairPool != null ? keyPairPool.take() : generateKeyPair();
+    }
+
+    /**
+     * @return pool of pre-generated key pairs, or null if the Certificate Authority is not initialized yet
+     */
+    public static KeyPairPool getKeyPairPool() {
+        return keyPairPool;
+    }
+
     /**
      * Generates a new X.509 certificate for the subject
      *
      * @param subjectName common name of the subject
      * @param publicKey   subject's public key
      * @param isCA        flag that indicates whether the subject is CA or not
-     * @return new X.509 certificate signed by the CA
+     * @return new X.509 certificate signed by the CA, or null if unable to issue it
      */
     public static X509Certificate generateCertificate(String subjectName, PublicKey publicKey, boolean isCA) {
+        X509CertificateHolder certHolder = buildCertificate(subjectName, publicKey, isCA);
+        if (certHolder == null) {
+            return null;
+        }
+
+        if (isCA) {
+            File location = Files.getCACertificateLocation();
+            storeCertificate(location, certHolder);
+        } else {
+            File location = Files.getUserCertificateLocation(subjectName.replaceFirst("CN=", ""));
+            storeCertificate(location, certHolder);
+        }
+
+        return convertCertificate(certHolder);
+    }
+
+    /**
+     * Issues certificates for many users at once. Certificates are signed on a pool of workers and stored on the
+     * file system asynchronously
+     *
+     * @param requests subjects along with their public keys
+     * @return new X.509 certificates signed by the CA, mapped by the subject name in the order of the requests,
+     * subjects whose certificate could not be issued are left out
+     */
+    public static Map<String, X509Certificate> issueCertificates(List<CertificateRequest> requests) {
+        List<Future<X509CertificateHolder>> signedCerts = new ArrayList<>(requests.size());
+        for (CertificateRequest request : requests) {
+            signedCerts.add(ISSUERS.submit(() -> buildCertificate(request.getSubjectName(), request.getPublicKey(), false)));
+        }
+
+        Map<String, X509Certificate> certificates = new LinkedHashMap<>();
+        List<CompletableFuture<Void>> writes = new ArrayList<>(requests.size());
+        try {
+            for (int i = 0; i < requests.size(); ++i) {
+                String subjectName = requests.get(i).getSubjectName();
+                try {
+                    X509CertificateHolder certHolder = signedCerts.get(i).get();
+                    if (certHolder == null) {
+                        continue;
+                    }
+                    writes.add(storeCertificateAsync(Files.getUserCertificateLocation(subjectName), certHolder));
+
+                    X509Certificate certificate = convertCertificate(certHolder);
+                    if (certificate != null) {
+                        certificates.put(subjectName, certificate);
+                    }
+                } catch (ExecutionException exception) {
+                    CustomLogger.log(Level.WARNING, "Unable to issue certificate for " + subjectName, exception.getCause());
+                }
+            }
+
+            for (CompletableFuture<Void> write : writes) {
+                try {
+                    write.get();
+                } catch (ExecutionException exception) {
+                    CustomLogger.log(Level.WARNING, "An I/O error occurred, unable to store certificate", exception.getCause());
+                }
+            }
+        } catch (InterruptedException exception) {
+            CustomLogger.log(Level.WARNING, "Interrupted while issuing certificates", exception);
+            Thread.currentThread().interrupt();
+        }
+        return certificates;
+    }
+
+    /**
+     * Builds a new X.509 certificate for the subject and signs it with the CA key
+     *
+     * @param subjectName common name of the subject
+     * @param publicKey   subject's public key
+     * @param isCA        flag that indicates whether the subject is CA or not
+     * @return holder of the new certificate, or null if no serial number is available
+     */
+    private static X509CertificateHolder buildCertificate(String subjectName, PublicKey publicKey, boolean isCA) {
+        BigInteger serial = nextSerialNumber();
+        if (serial == null) {
+            return null;
+        }
+
         Date notBefore = new Date(System.currentTimeMillis());
 
         Calendar calendar = Calendar.getInstance();
@@ -149,8 +496,6 @@ public class CertificateAuthority {
 
         Date notAfter = calendar.getTime();
 
-        BigInteger serial = new BigInteger(Long.toString(notBefore.getTime()));
-
         JcaX509v3CertificateBuilder certBuilder = new JcaX509v3CertificateBuilder(
                 CAName,
                 serial,
@@ -167,32 +512,48 @@ public class CertificateAuthority {
             if (!isCA) {
                 /*
                  * Users can use the certificate just for the specified purposes
+                 * EC keys cannot encipher the symmetric key, they agree on it with the sender instead
                  */
-                KeyUsage keyUsage = new KeyUsage(KeyUsage.keyEncipherment | KeyUsage.digitalSignature);
+                int keyPurpose = Algorithms.isECKey(publicKey) ? KeyUsage.keyAgreement : KeyUsage.keyEncipherment;
+                KeyUsage keyUsage = new KeyUsage(keyPurpose | KeyUsage.digitalSignature);
                 certBuilder.addExtension(new ASN1ObjectIdentifier("2.5.29.15"), true, keyUsage);
             }
         } catch (CertIOException exception) {
             CustomLogger.log(Level.WARNING, "Unable to add extensions to the certificate", exception);
         }
 
-        ContentSigner contentSigner = null;
-        try {
-            contentSigner = new JcaContentSignerBuilder(Algorithms.DIGITAL_SIGNATURE_ALGORITHM).build(CAKeyPair.getPrivate());
-        } catch (OperatorCreationException exception) {
-            CustomLogger.log(Level.WARNING, "Unable to build an object for signing certificates", exception);
-        }
-
-        X509CertificateHolder certHolder = certBuilder.build(Objects.requireNonNull(contentSigner));
+        return certBuilder.build(Objects.requireNonNull(getCASigner()));
+    }
 
-        JcaX509CertificateConverter certConverter = new JcaX509CertificateConverter().setProvider(new BouncyCastleProvider());
+    /**
+     * Hands out the serial number of the next certificate
+     *
+     * @return serial number that has never been handed out before, or null if the serial number file could not be read
+     * or a new block of serial numbers could not be reserved
+     */
+    private static BigInteger nextSerialNumber() {
+        if (serialNumbers == null) {
+            CustomLogger.log(Level.SEVERE, "Serial number file is not available, unable to issue certificate",
+                    new IllegalStateException("Serial number generator is not initialized"));
+            return null;
+        }
 
-        if (isCA) {
-            File location = Files.getCACertificateLocation();
-            storeCertificate(location, certHolder);
-        } else {
-            File location = Files.getUserCertificateLocation(subjectName.replaceFirst("CN=", ""));
-            storeCertificate(location, certHolder);
+        try {
+            return serialNumbers.next();
+        } catch (UncheckedIOException exception) {
+            CustomLogger.log(Level.SEVERE, "Unable to reserve serial numbers, unable to issue certificate", exception.getCause());
+            return null;
         }
+    }
+
+    /**
+     * Gets the certificate from the certificate holder
+     *
+     * @param certHolder holder of a certificate
+     * @return X.509 certificate, or null if unable to convert it
+     */
+    private static X509Certificate convertCertificate(X509CertificateHolder certHolder) {
+        JcaX509CertificateConverter certConverter = CryptoContext.getCertificateConverter();
 
         try {
             return certConverter.getCertificate(certHolder);
@@ -203,52 +564,200 @@ public class CertificateAuthority {
     }
 
     /**
-     * Generates a new Certificate Revocation List if it does not already exists, or updates the current one if it does exist
+     * Gets the object used to sign certificates and CRLs with the CA key. Building it is expensive,
+     * so every thread builds it once and then reuses it
      *
-     * @return new X.509 v2 CRL
+     * @return content signer for the CA key, or null if unable to build one
+     */
+    private static ContentSigner getCASigner() {
+        ContentSigner contentSigner = CA_SIGNER.get();
+        if (contentSigner == null) {
+            try {
+                contentSigner = CryptoContext.buildContentSigner(CAKeyPair.getPrivate());
+                CA_SIGNER.set(contentSigner);
+            } catch (OperatorCreationException exception) {
+                CustomLogger.log(Level.WARNING, "Unable to build an object for signing with the CA key", exception);
+            }
+        }
+        return contentSigner;
+    }
+
+    /**
+     * Loads the revoked certificates from the existing base CRL and the delta CRL issued after it, if there are any.
+     * The base CRL is kept as it is, a new one is generated and stored only if there is none
+     *
+     * @return base X.509 v2 CRL
      */
     private static X509CRL generateCRL() {
-        Date date = new Date(System.currentTimeMillis());
+        X509CRL baseCRL = loadCRL(Files.getCRLFile());
+        if (baseCRL == null) {
+            lastCRLNumber = BigInteger.ZERO;
+            basePublishedAt = System.currentTimeMillis();
+            baseCRL = buildCRL(REVOCATIONS.getRevocations().keySet(), false);
+
+            /* Delta CRLs must reference the number the new base CRL was issued with */
+            baseCRLNumber = lastCRLNumber;
+            if (baseCRL != null) {
+                storeCRL(Files.getCRLFile(), baseCRL);
+            }
+            return baseCRL;
+        }
 
-        JcaX509v2CRLBuilder CRLBuilder = new JcaX509v2CRLBuilder(CACertificate, date);
+        indexRevokedCertificates(baseCRL, false);
+        baseCRLNumber = getCRLNumber(baseCRL, Extension.cRLNumber);
+        lastCRLNumber = baseCRLNumber;
+        basePublishedAt = baseCRL.getThisUpdate().getTime();
+
+        /* A delta CRL issued for an older base CRL is already contained in the base CRL */
+        X509CRL loadedDeltaCRL = loadCRL(Files.getDeltaCRLFile());
+        if (loadedDeltaCRL != null && baseCRLNumber.equals(getCRLNumber(loadedDeltaCRL, Extension.deltaCRLIndicator))) {
+            indexRevokedCertificates(loadedDeltaCRL, true);
+            lastCRLNumber = getCRLNumber(loadedDeltaCRL, Extension.cRLNumber);
+            deltaCRL = loadedDeltaCRL;
+        }
 
-        if (Files.getCRLFile().exists()) {
-            try (FileInputStream input = new FileInputStream(Files.getCRLFile())) {
-                CertificateFactory certFactory = CertificateFactory.getInstance("X.509");
-                X509CRL crl = (X509CRL) certFactory.generateCRL(input);
-                Set revokedCerts = crl.getRevokedCertificates();
-                if (revokedCerts != null && !revokedCerts.isEmpty()) {
-                    for (Object entry : revokedCerts) {
-                        X509CRLEntry CRLEntry = (X509CRLEntry) entry;
-                        CRLBuilder.addCRLEntry(
-                                CRLEntry.getSerialNumber(),
-                                CRLEntry.getRevocationDate(),
-                                CRLEntry.getRevocationReason().ordinal()
-                        );
-                    }
+        return baseCRL;
+    }
+
+    /**
+     * Reads a Certificate Revocation List from the file
+     *
+     * @param location a place where the CRL is stored
+     * @return CRL read from the file, or null if the file does not exist or any error occurs
+     */
+    private static X509CRL loadCRL(File location) {
+        if (!location.exists()) {
+            return null;
+        }
+
+        try (FileInputStream input = new FileInputStream(location)) {
+            CertificateFactory certFactory = CryptoContext.getCertificateFactory();
+            return (X509CRL) certFactory.generateCRL(input);
+        } catch (CRLException exception) {
+            CustomLogger.log(Level.WARNING, "Unable to generate CRL", exception);
+        } catch (IOException exception) {
+            CustomLogger.log(Level.WARNING, "An I/O error occurred", exception);
+        }
+        return null;
+    }
+
+    /**
+     * Adds every certificate from the CRL to the revocation index
+     *
+     * @param crl     base or delta CRL
+     * @param isDelta flag that indicates whether the certificates have to be published in the next delta CRL as well
+     * @return true if any of the certificates was not in the index before, false otherwise
+     */
+    private static boolean indexRevokedCertificates(X509CRL crl, boolean isDelta) {
+        Set revokedCerts = crl.getRevokedCertificates();
+        if (revokedCerts == null) {
+            return false;
+        }
+
+        boolean added = false;
+        for (Object entry : revokedCerts) {
+            X509CRLEntry CRLEntry = (X509CRLEntry) entry;
+            /* Reason is left out of the CRL entry when it is unspecified */
+            CRLReason reason = CRLEntry.getRevocationReason();
+            boolean isNew = REVOCATIONS.add(
+                    CRLEntry.getSerialNumber(),
+                    CRLEntry.getRevocationDate(),
+                    reason != null ? reason : CRLReason.UNSPECIFIED
+            );
+            if (isNew) {
+                added = true;
+                if (isDelta) {
+                    DELTA_SERIALS.add(CRLEntry.getSerialNumber());
+                }
+                if (ocspResponder != null) {
+                    ocspResponder.invalidate(CRLEntry.getSerialNumber());
                 }
-            } catch (CertificateException exception) {
-                CustomLogger.log(Level.WARNING, "Unable to get certificate details", exception);
-            } catch (CRLException exception) {
-                CustomLogger.log(Level.WARNING, "Unable to generate CRL", exception);
-            } catch (IOException exception) {
-                CustomLogger.log(Level.WARNING, "An I/O error occurred", exception);
             }
         }
+        return added;
+    }
+
+    /**
+     * Adds the revocations the other instances on the same host logged since the last check to the revocation index,
+     * they are published along with the revocations of this instance
+     */
+    private static void mergeLoggedRevocations() {
+        try {
+            for (Map.Entry<BigInteger, RevocationIndex.Revocation> logged : REVOCATIONS.readLog().entrySet()) {
+                RevocationIndex.Revocation revocation = logged.getValue();
+                if (REVOCATIONS.add(logged.getKey(), revocation.getRevocationDate(), revocation.getReason())) {
+                    DELTA_SERIALS.add(logged.getKey());
+                    CRL_CHANGED.set(true);
+                    ocspResponder.invalidate(logged.getKey());
+                }
+            }
+        } catch (IOException exception) {
+            CustomLogger.log(Level.WARNING, "Unable to read revocations logged by the other instances", exception);
+        }
+    }
+
+    /**
+     * Reads a CRL number from the extension of the CRL
+     *
+     * @param crl         base or delta CRL
+     * @param extensionID CRL number or delta CRL indicator extension
+     * @return CRL number held by the extension, or zero if the CRL does not have the extension
+     */
+    private static BigInteger getCRLNumber(X509CRL crl, ASN1ObjectIdentifier extensionID) {
+        byte[] extension = crl.getExtensionValue(extensionID.getId());
+        if (extension == null) {
+            return BigInteger.ZERO;
+        }
 
-        ContentSigner contentSigner = null;
         try {
-            contentSigner = new JcaContentSignerBuilder(Algorithms.DIGITAL_SIGNATURE_ALGORITHM).build(CAKeyPair.getPrivate());
-        } catch (OperatorCreationException exception) {
-            CustomLogger.log(Level.WARNING, "Unable to create a content signing object", exception);
+            return ASN1Integer.getInstance(JcaX509ExtensionUtils.parseExtensionValue(extension)).getValue();
+        } catch (IOException exception) {
+            CustomLogger.log(Level.WARNING, "Unable to read CRL number", exception);
+            return BigInteger.ZERO;
         }
+    }
+
+    /**
+     * Builds and signs a new Certificate Revocation List. A base CRL is numbered with the next CRL number, a delta CRL
+     * additionally references the number of the base CRL it complements
+     *
+     * @param serialNumbers serial numbers of the certificates to be listed
+     * @param isDelta       flag that indicates whether the CRL is a delta CRL
+     * @return new X.509 v2 CRL, or null if any error occurs
+     */
+    private static X509CRL buildCRL(Collection<BigInteger> serialNumbers, boolean isDelta) {
+        Date date = new Date(System.currentTimeMillis());
 
-        X509CRLHolder CRLHolder = CRLBuilder.build(Objects.requireNonNull(contentSigner));
+        JcaX509v2CRLBuilder CRLBuilder = new JcaX509v2CRLBuilder(CACertificate, date);
 
-        JcaX509CRLConverter CRLConverter = new JcaX509CRLConverter().setProvider(new BouncyCastleProvider());
+        for (BigInteger serialNumber : serialNumbers) {
+            RevocationIndex.Revocation revocation = REVOCATIONS.get(serialNumber);
+            CRLBuilder.addCRLEntry(
+                    serialNumber,
+                    revocation.getRevocationDate(),
+                    revocation.getReason().ordinal()
+            );
+        }
 
+        BigInteger number = lastCRLNumber.add(BigInteger.ONE);
         try {
-            return CRLConverter.getCRL(CRLHolder);
+            CRLBuilder.addExtension(Extension.cRLNumber, false, new CRLNumber(number));
+            if (isDelta) {
+                CRLBuilder.addExtension(Extension.deltaCRLIndicator, true, new CRLNumber(baseCRLNumber));
+            }
+        } catch (CertIOException exception) {
+            CustomLogger.log(Level.WARNING, "Unable to add extensions to the CRL", exception);
+            return null;
+        }
+
+        X509CRLHolder CRLHolder = CRLBuilder.build(Objects.requireNonNull(getCASigner()));
+
+        JcaX509CRLConverter CRLConverter = CryptoContext.getCRLConverter();
+
+        try {
+            X509CRL crl = CRLConverter.getCRL(CRLHolder);
+            lastCRLNumber = number;
+            return crl;
         } catch (CRLException exception) {
             CustomLogger.log(Level.WARNING, "Unable to generate CRL", exception);
             return null;
@@ -256,52 +765,88 @@ public class CertificateAuthority {
     }
 
     /**
-     * Adds the certificate to the revocation list
+     * Stores the revocation in the revocation log and adds the certificate to the revocation index before returning,
+     * only signing the CRL that lists it is left to the next batch of revocations
      *
      * @param certificate      revoking certificate
      * @param revocationReason reason of revocation
+     * @return true if the revocation is stored, false if it is kept in memory only until the next CRL is published
      */
-    public static void revokeCertificate(X509Certificate certificate, CRLReason revocationReason) {
+    public static boolean revokeCertificate(X509Certificate certificate, CRLReason revocationReason) {
         Date date = new Date(System.currentTimeMillis());
 
-        JcaX509v2CRLBuilder CRLBuilder = new JcaX509v2CRLBuilder(CACertificate, date);
+        boolean isNew;
+        boolean stored = true;
+        try {
+            isNew = REVOCATIONS.record(certificate.getSerialNumber(), date, revocationReason);
+        } catch (IOException exception) {
+            CustomLogger.log(Level.SEVERE, "Unable to store revocation, it is kept in memory until the next CRL is published", exception);
+            isNew = REVOCATIONS.add(certificate.getSerialNumber(), date, revocationReason);
+            stored = false;
+        }
 
-        Set revokedCerts = CRL.getRevokedCertificates();
-        if (revokedCerts != null && !revokedCerts.isEmpty()) {
-            for (Object entry : revokedCerts) {
-                X509CRLEntry CRLEntry = (X509CRLEntry) entry;
-                CRLBuilder.addCRLEntry(
-                        CRLEntry.getSerialNumber(),
-                        CRLEntry.getRevocationDate(),
-                        CRLEntry.getRevocationReason().ordinal()
-                );
+        if (isNew) {
+            DELTA_SERIALS.add(certificate.getSerialNumber());
+            CRL_CHANGED.set(true);
+            if (ocspResponder != null) {
+                ocspResponder.invalidate(certificate.getSerialNumber());
             }
         }
+        return stored;
+    }
 
-        CRLBuilder.addCRLEntry(
-                certificate.getSerialNumber(),
-                date,
-                revocationReason.ordinal()
-        );
-
-        ContentSigner contentSigner = null;
-        try {
-            contentSigner = new JcaContentSignerBuilder(Algorithms.DIGITAL_SIGNATURE_ALGORITHM).build(CAKeyPair.getPrivate());
-        } catch (OperatorCreationException exception) {
-            CustomLogger.log(Level.WARNING, "Unable to create a content signing object", exception);
+    /**
+     * Publishes the certificates revoked since the last publication. Usually only the delta CRL is written, it lists
+     * every certificate revoked since the base CRL and is signed and written again as a whole at every publication, so
+     * its cost grows with the delta rather than with all the revocations. A new base CRL listing every revoked
+     * certificate is written once the delta grows too large or the base CRL gets too old. The revocations themselves
+     * are already stored in the revocation log by the time they are published
+     */
+    public static synchronized void publishCRL() {
+        /* The instance hosting the OCSP responder publishes the revocations of every instance */
+        if (ocspClient != null || !CRL_CHANGED.getAndSet(false)) {
+            return;
         }
 
-        X509CRLHolder CRLHolder = CRLBuilder.build(Objects.requireNonNull(contentSigner));
+        long baseAge = System.currentTimeMillis() - basePublishedAt;
+        boolean publishBase = DELTA_SERIALS.size() >= Integer.getInteger("srcprotect.crl.delta.max", 1000)
+                || baseAge >= TimeUnit.HOURS.toMillis(Long.getLong("srcprotect.crl.base.period", 24));
 
-        JcaX509CRLConverter CRLConverter = new JcaX509CRLConverter().setProvider(new BouncyCastleProvider());
+        if (publishBase) {
+            Set<BigInteger> published = new HashSet<>(REVOCATIONS.getRevocations().keySet());
+            X509CRL crl = buildCRL(published, false);
+            if (crl == null) {
+                CRL_CHANGED.set(true);
+                return;
+            }
 
-        try {
-            CRL = CRLConverter.getCRL(CRLHolder);
-        } catch (CRLException exception) {
-            CustomLogger.log(Level.WARNING, "Unable to generate CRL", exception);
-        }
+            CRL = crl;
+            baseCRLNumber = lastCRLNumber;
+            basePublishedAt = crl.getThisUpdate().getTime();
+            DELTA_SERIALS.removeAll(published);
+            deltaCRL = null;
 
-        storeCRL();
+            /* The log is compacted only once the new base CRL has replaced the previous one on the disk */
+            if (!storeCRL(Files.getCRLFile(), CRL)) {
+                return;
+            }
+            try {
+                java.nio.file.Files.deleteIfExists(Files.getDeltaCRLFile().toPath());
+                /* Revocations listed in the stored base CRL no longer need the log to survive a crash */
+                REVOCATIONS.compactLog(published);
+            } catch (IOException exception) {
+                CustomLogger.log(Level.WARNING, "Unable to clean up after publishing the base CRL", exception);
+            }
+        } else {
+            X509CRL crl = buildCRL(new ArrayList<>(DELTA_SERIALS), true);
+            if (crl == null) {
+                CRL_CHANGED.set(true);
+                return;
+            }
+
+            deltaCRL = crl;
+            storeCRL(Files.getDeltaCRLFile(), deltaCRL);
+        }
     }
 
     /**
@@ -321,6 +866,60 @@ public class CertificateAuthority {
             );
             CustomLogger.log(Level.WARNING, "An I/O error occurred, unable to store certificate", exception);
         }
+        CredentialsManager.getCertificateCache().invalidate(location);
+    }
+
+    /**
+     * Stores a certificate to the specified location on the file system without waiting for the write to finish
+     *
+     * @param location   a place to store the certificate
+     * @param certHolder holder of a certificate
+     * @return write in progress, completed exceptionally if an I/O error occurs
+     */
+    private static CompletableFuture<Void> storeCertificateAsync(File location, X509CertificateHolder certHolder) {
+        CompletableFuture<Void> write = new CompletableFuture<>();
+
+        try {
+            StringWriter pem = new StringWriter();
+            try (PemWriter writer = new PemWriter(pem)) {
+                writer.writeObject(new PemObject("CERTIFICATE", certHolder.toASN1Structure().getEncoded()));
+            }
+            ByteBuffer content = ByteBuffer.wrap(pem.toString().getBytes());
+
+            AsynchronousFileChannel channel = AsynchronousFileChannel.open(
+                    location.toPath(),
+                    StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING
+            );
+            channel.write(content, 0, channel, new CompletionHandler<Integer, AsynchronousFileChannel>() {
+                @Override
+                public void completed(Integer written, AsynchronousFileChannel channel) {
+                    if (content.hasRemaining()) {
+                        channel.write(content, content.position(), channel, this);
+                        return;
+                    }
+                    close(channel);
+                    CredentialsManager.getCertificateCache().invalidate(location);
+                    write.complete(null);
+                }
+
+                @Override
+                public void failed(Throwable exception, AsynchronousFileChannel channel) {
+                    close(channel);
+                    write.completeExceptionally(exception);
+                }
+
+                private void close(AsynchronousFileChannel channel) {
+                    try {
+                        channel.close();
+                    } catch (IOException exception) {
+                        CustomLogger.log(Level.WARNING, "Unable to close certificate file", exception);
+                    }
+                }
+            });
+        } catch (IOException exception) {
+            write.completeExceptionally(exception);
+        }
+        return write;
     }
 
     /**
@@ -346,13 +945,37 @@ public class CertificateAuthority {
     }
 
     /**
-     * Stores a Certificate Revocation List to the designated location on the file system
+     * Stores a Certificate Revocation List to the designated location on the file system. The CRL is written to
+     * a temporary file and forced to the disk first, then moved over the previous CRL in a single step, so a crash
+     * never leaves the stored CRL truncated
+     *
+     * @param location a place to store the CRL
+     * @param crl      base or delta CRL
+     * @return true if the CRL was stored, false if an I/O error occurred
      */
-    private static void storeCRL() {
-        try (JcaPEMWriter writer = new JcaPEMWriter(new PrintWriter(Files.getCRLFile()))) {
-            writer.writeObject(CRL);
+    private static boolean storeCRL(File location, X509CRL crl) {
+        File partialFile = new File(location + ".tmp");
+        try {
+            StringWriter encoded = new StringWriter();
+            try (JcaPEMWriter writer = new JcaPEMWriter(encoded)) {
+                writer.writeObject(crl);
+            }
+
+            try (FileChannel channel = FileChannel.open(partialFile.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buffer = ByteBuffer.wrap(encoded.toString().getBytes(StandardCharsets.US_ASCII));
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            java.nio.file.Files.move(partialFile.toPath(), location.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
         } catch (IOException exception) {
             CustomLogger.log(Level.WARNING, "An I/O error occurred, unable to store CRL", exception);
+            partialFile.delete();
+            return false;
         }
     }
 
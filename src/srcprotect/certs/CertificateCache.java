@@ -0,0 +1,179 @@
+package srcprotect.certs;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the most recently used certificates parsed, so that they are read from the file only once. A cached certificate
+ * is used only as long as the last modification time and the size of its file stay the same
+ */
+public class CertificateCache {
+
+    /**
+     * Reads a certificate from the file
+     */
+    @FunctionalInterface
+    public interface Loader {
+
+        /**
+         * Reads the certificate from the file
+         *
+         * @param location a place where the certificate is stored
+         * @return a certificate generated from the file
+         * @throws IOException          if an I/O error occurs while trying to read from file
+         * @throws CertificateException if unable to read contents of the certificate file
+         */
+        X509Certificate load(File location) throws IOException, CertificateException;
+
+    }
+
+    /**
+     * Parsed certificate along with the state of the file it was read from
+     */
+    private static class Entry {
+
+        private final long lastModified;
+        private final long size;
+        private final X509Certificate certificate;
+
+        private Entry(long lastModified, long size, X509Certificate certificate) {
+            this.lastModified = lastModified;
+            this.size = size;
+            this.certificate = certificate;
+        }
+
+    }
+
+    private final Map<String, Entry> entries;
+    private final Loader loader;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Creates an empty cache
+     *
+     * @param capacity maximum number of certificates kept, the least recently used one is evicted first
+     * @param loader   reads the certificates that are not in the cache
+     */
+    public CertificateCache(int capacity, Loader loader) {
+        this.loader = loader;
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > capacity) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Gets the certificate from the cache, or reads it from the file if it is not cached or the file has changed
+     *
+     * @param location a place where the certificate is stored
+     * @return a certificate generated from the file
+     * @throws IOException          if an I/O error occurs while trying to read from file
+     * @throws CertificateException if unable to read contents of the certificate file
+     */
+    public X509Certificate get(File location) throws IOException, CertificateException {
+        String key = location.getAbsolutePath();
+        long lastModified = location.lastModified();
+        long size = location.length();
+
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        if (entry != null && entry.lastModified == lastModified && entry.size == size) {
+            hits.incrementAndGet();
+            return entry.certificate;
+        }
+
+        /* Parsed outside of the lock, so that a slow read does not block the lookups of other certificates */
+        misses.incrementAndGet();
+        X509Certificate certificate = loader.load(location);
+        synchronized (entries) {
+            entries.put(key, new Entry(lastModified, size, certificate));
+        }
+        return certificate;
+    }
+
+    /**
+     * Discards the cached certificate of the file
+     *
+     * @param location a place where the certificate is stored
+     */
+    public void invalidate(File location) {
+        synchronized (entries) {
+            entries.remove(location.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Discards every cached certificate
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * Gets the number of cached certificates
+     *
+     * @return number of certificates in the cache
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Getter for the hit count
+     *
+     * @return number of certificates served from the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Getter for the miss count
+     *
+     * @return number of certificates read from the file
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Getter for the eviction count
+     *
+     * @return number of certificates evicted because the cache was full
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Gets the share of the requests served from the cache
+     *
+     * @return hit rate between 0 and 1, or 0 if the cache has not been used yet
+     */
+    public double getHitRate() {
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+}
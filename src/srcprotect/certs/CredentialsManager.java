@@ -1,11 +1,11 @@
 package srcprotect.certs;
 
-import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.openssl.PEMDecryptorProvider;
 import org.bouncycastle.openssl.PEMEncryptedKeyPair;
 import org.bouncycastle.openssl.PEMParser;
 import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
 import org.bouncycastle.openssl.jcajce.JcePEMDecryptorProviderBuilder;
+import srcprotect.crypt.CryptoContext;
 import srcprotect.utils.Algorithms;
 
 import java.io.File;
@@ -19,14 +19,26 @@ import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.Base64;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Handles gathering user credentials from files
  */
 public class CredentialsManager {
 
+    private static final CertificateCache CERTIFICATES = new CertificateCache(
+            Integer.getInteger("srcprotect.certcache.size", 256),
+            CredentialsManager::readCertificate
+    );
+
+    private static final Keyring KEYRING = new Keyring(
+            TimeUnit.SECONDS.toMillis(Long.getLong("srcprotect.keyring.idle", 300)),
+            Integer.getInteger("srcprotect.keyring.size", 16)
+    );
+
     /**
-     * Reads the certificate from the specified file
+     * Reads the certificate from the specified file, certificates that were read before are served from the cache
+     * as long as their files have not changed
      *
      * @param location a place where the certificate is stored
      * @return a certificate generated from the file
@@ -34,9 +46,39 @@ public class CredentialsManager {
      * @throws CertificateException if unable to read contents of the certificate file
      */
     public static X509Certificate getUserCertificate(File location) throws IOException, CertificateException {
+        return CERTIFICATES.get(location);
+    }
+
+    /**
+     * Getter for the certificate cache
+     *
+     * @return cache of the certificates read from the files, along with its hit rate
+     */
+    public static CertificateCache getCertificateCache() {
+        return CERTIFICATES;
+    }
+
+    /**
+     * Getter for the keyring
+     *
+     * @return keyring holding the recently unlocked keys of the users
+     */
+    public static Keyring getKeyring() {
+        return KEYRING;
+    }
+
+    /**
+     * Parses the certificate from the specified file
+     *
+     * @param location a place where the certificate is stored
+     * @return a certificate generated from the file
+     * @throws IOException          if an I/O error occurs while trying to read from file
+     * @throws CertificateException if unable to read contents of the certificate file
+     */
+    private static X509Certificate readCertificate(File location) throws IOException, CertificateException {
         FileInputStream inputStream = new FileInputStream(location);
 
-        CertificateFactory certFactory = CertificateFactory.getInstance("X.509", new BouncyCastleProvider());
+        CertificateFactory certFactory = CryptoContext.getCertificateFactory();
         X509Certificate certificate = (X509Certificate) certFactory.generateCertificate(inputStream);
 
         inputStream.close();
@@ -57,7 +99,7 @@ public class CredentialsManager {
         PEMEncryptedKeyPair encryptedKeyPair = (PEMEncryptedKeyPair) parser.readObject();
 
         PEMDecryptorProvider decryptorProvider = new JcePEMDecryptorProviderBuilder().build(password.toCharArray());
-        JcaPEMKeyConverter keyConverter = new JcaPEMKeyConverter().setProvider(new BouncyCastleProvider());
+        JcaPEMKeyConverter keyConverter = CryptoContext.getKeyConverter();
 
         parser.close();
 
@@ -65,7 +107,8 @@ public class CredentialsManager {
     }
 
     /**
-     * Generates the hash of the password along with the specified salt and then encodes the hash
+     * Generates the hash of the password along with the specified salt and then encodes the hash.
+     * Only used to verify legacy hashes, new hashes are computed by {@link PasswordHasher}
      *
      * @param password user's password
      * @param salt     used to avoid generating same hash if two users happen to have the same passwords
@@ -73,7 +116,7 @@ public class CredentialsManager {
      * @throws NoSuchAlgorithmException if the algorithm is not supported
      */
     public static String getEncodedPasswordHashAsString(String password, byte[] salt) throws NoSuchAlgorithmException {
-        MessageDigest digest = MessageDigest.getInstance(Algorithms.PASSWORD_HASH_ALGORITHM);
+        MessageDigest digest = CryptoContext.getMessageDigest(Algorithms.PASSWORD_HASH_ALGORITHM);
 
         byte[] hashedPassword = password.getBytes();
 
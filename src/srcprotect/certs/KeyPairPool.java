@@ -0,0 +1,173 @@
+package srcprotect.certs;
+
+import java.security.KeyPair;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps a number of pre-generated key pairs ready to be handed out, since generating a key pair is the slowest step
+ * of creating a new account. Key pairs are generated in the background by low priority threads
+ */
+public class KeyPairPool {
+
+    private final int capacity;
+    private final BlockingQueue<KeyPair> keyPairs;
+    private final ExecutorService refillers;
+    private final AtomicInteger pendingRefills = new AtomicInteger();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong refills = new AtomicLong();
+    private final AtomicLong refillNanos = new AtomicLong();
+    private final AtomicLong lastRefillNanos = new AtomicLong();
+
+    /**
+     * Creates a pool and starts filling it
+     *
+     * @param capacity      number of key pairs kept ready
+     * @param refillerCount number of threads generating key pairs in the background
+     */
+    public KeyPairPool(int capacity, int refillerCount) {
+        this.capacity = capacity;
+        keyPairs = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        refillers = Executors.newFixedThreadPool(Math.max(1, refillerCount), runnable -> {
+            Thread refiller = new Thread(runnable, "key-pair-pool");
+            refiller.setDaemon(true);
+            refiller.setPriority(Thread.MIN_PRIORITY);
+            return refiller;
+        });
+
+        refill();
+    }
+
+    /**
+     * Hands out a ready key pair, or generates one on the calling thread if the pool is empty
+     *
+     * @return new key pair, or null if unable to generate one
+     */
+    public KeyPair take() {
+        KeyPair keyPair = keyPairs.poll();
+        if (keyPair != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+            keyPair = CertificateAuthority.generateKeyPair();
+        }
+
+        refill();
+        return keyPair;
+    }
+
+    /**
+     * Schedules generation of as many key pairs as needed to fill the pool. Every key pair is scheduled only once
+     * a slot for it has been reserved, so concurrent callers never schedule more key pairs than the pool lacks
+     */
+    private void refill() {
+        while (!refillers.isShutdown()) {
+            /* Pending count is read before the depth: a refill that completes in between changes the pending count,
+               so the reservation fails and is retried instead of counting the same key pair twice */
+            int pending = pendingRefills.get();
+            if (keyPairs.size() + pending >= capacity) {
+                return;
+            }
+            if (!pendingRefills.compareAndSet(pending, pending + 1)) {
+                continue;
+            }
+
+            try {
+                refillers.execute(() -> {
+                    try {
+                        long start = System.nanoTime();
+                        KeyPair keyPair = CertificateAuthority.generateKeyPair();
+                        long elapsed = System.nanoTime() - start;
+
+                        if (keyPair != null) {
+                            refills.incrementAndGet();
+                            refillNanos.addAndGet(elapsed);
+                            lastRefillNanos.set(elapsed);
+                            keyPairs.offer(keyPair);
+                        }
+                    } finally {
+                        pendingRefills.decrementAndGet();
+                    }
+                });
+            } catch (RejectedExecutionException exception) {
+                pendingRefills.decrementAndGet();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stops generating key pairs, key pairs already in the pool can still be taken
+     */
+    public void shutdown() {
+        refillers.shutdownNow();
+    }
+
+    /**
+     * Getter for the capacity
+     *
+     * @return number of key pairs the pool tries to keep ready
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Gets the current depth of the pool
+     *
+     * @return number of key pairs ready to be handed out
+     */
+    public int getDepth() {
+        return keyPairs.size();
+    }
+
+    /**
+     * Getter for the hit count
+     *
+     * @return number of key pairs handed out straight from the pool
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Getter for the miss count
+     *
+     * @return number of key pairs generated on the calling thread because the pool was empty
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Getter for the refill count
+     *
+     * @return number of key pairs generated in the background
+     */
+    public long getRefills() {
+        return refills.get();
+    }
+
+    /**
+     * Gets the average time needed to generate a key pair in the background
+     *
+     * @return average refill latency in milliseconds, or 0 if no key pair has been generated yet
+     */
+    public double getAverageRefillMillis() {
+        long count = refills.get();
+        return count == 0 ? 0 : refillNanos.get() / (count * 1_000_000.0);
+    }
+
+    /**
+     * Gets the time needed to generate the latest key pair in the background
+     *
+     * @return latest refill latency in milliseconds
+     */
+    public double getLastRefillMillis() {
+        return lastRefillNanos.get() / 1_000_000.0;
+    }
+
+}
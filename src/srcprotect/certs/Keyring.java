@@ -0,0 +1,273 @@
+package srcprotect.certs;
+
+import srcprotect.crypt.CryptoContext;
+import srcprotect.utils.logging.CustomLogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Keeps the private keys of the users unlocked for a while after they were decrypted with the password, so that
+ * repeated operations do not have to decrypt the key file again. A key is handed out only for the same password it was
+ * unlocked with, and it is evicted once it has not been used for the idle time, once its file changes or once the
+ * keyring holds more keys than its capacity, in which case the least recently used key goes first. The key material
+ * is held only by the keyring, so it is always wiped on eviction rather than left to the garbage collector
+ */
+public class Keyring {
+
+    /**
+     * Unlocked key pair of a single user
+     */
+    private static class Entry {
+
+        private final byte[] salt;
+        private final byte[] verifier;
+        private final long keyFileModified;
+        private final PublicKey publicKey;
+        private final String algorithm;
+        private byte[] encodedPrivateKey;
+        private volatile long lastAccess;
+
+        private Entry(String password, long keyFileModified, KeyPair keyPair) {
+            salt = new byte[16];
+            new SecureRandom().nextBytes(salt);
+            verifier = computeVerifier(salt, password);
+            this.keyFileModified = keyFileModified;
+            publicKey = keyPair.getPublic();
+            algorithm = keyPair.getPrivate().getAlgorithm();
+            encodedPrivateKey = keyPair.getPrivate().getEncoded();
+            lastAccess = System.currentTimeMillis();
+        }
+
+        /**
+         * Rebuilds the key pair if the password is the one the key was unlocked with
+         *
+         * @param password password of the user
+         * @return key pair, or null if the password does not match or the key has been evicted
+         */
+        private synchronized KeyPair restore(String password) {
+            byte[] encoded = encodedPrivateKey;
+            if (encoded == null || !MessageDigest.isEqual(verifier, computeVerifier(salt, password))) {
+                return null;
+            }
+
+            try {
+                PrivateKey privateKey = KeyFactory.getInstance(algorithm, CryptoContext.getProvider())
+                        .generatePrivate(new PKCS8EncodedKeySpec(encoded));
+                lastAccess = System.currentTimeMillis();
+                return new KeyPair(publicKey, privateKey);
+            } catch (NoSuchAlgorithmException | InvalidKeySpecException exception) {
+                CustomLogger.log(Level.WARNING, "Unable to restore unlocked key", exception);
+                return null;
+            }
+        }
+
+        /**
+         * Overwrites the key material and the password verifier with zeros
+         */
+        private synchronized void wipe() {
+            if (encodedPrivateKey != null) {
+                Arrays.fill(encodedPrivateKey, (byte) 0);
+                encodedPrivateKey = null;
+            }
+            Arrays.fill(verifier, (byte) 0);
+        }
+
+    }
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final long idleTimeMillis;
+    private final int capacity;
+    private final ScheduledExecutorService sweeper;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Creates an empty keyring and starts evicting the keys that have not been used for the idle time
+     *
+     * @param idleTimeMillis time an unused key stays unlocked
+     * @param capacity       maximum number of keys kept unlocked at the same time
+     */
+    public Keyring(long idleTimeMillis, int capacity) {
+        this.idleTimeMillis = idleTimeMillis;
+        this.capacity = Math.max(1, capacity);
+
+        sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "keyring-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000, idleTimeMillis / 2);
+        sweeper.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gets the key pair of the user, decrypting the key file only if the key is not already unlocked
+     *
+     * @param username username of the user
+     * @param password used to decrypt contents of the file
+     * @param location a place where the key is stored
+     * @return key pair of the user
+     * @throws IOException if an I/O error occurs while trying to read from file or the password is wrong
+     */
+    public KeyPair unlock(String username, String password, File location) throws IOException {
+        long keyFileModified = location.lastModified();
+
+        Entry entry = entries.get(username);
+        if (entry != null) {
+            if (entry.keyFileModified != keyFileModified) {
+                evict(username, entry);
+            } else {
+                KeyPair keyPair = entry.restore(password);
+                if (keyPair != null) {
+                    hits.incrementAndGet();
+                    return keyPair;
+                }
+            }
+        }
+
+        /* A wrong password fails here, and does not evict the key unlocked with the right one */
+        misses.incrementAndGet();
+        KeyPair keyPair = CredentialsManager.getUserKey(password, location);
+        Entry previous = entries.put(username, new Entry(password, keyFileModified, keyPair));
+        if (previous != null) {
+            previous.wipe();
+        }
+        evictLeastRecentlyUsed();
+        return keyPair;
+    }
+
+    /**
+     * Evicts the key of the user
+     *
+     * @param username username of the user
+     */
+    public void lock(String username) {
+        Entry entry = entries.get(username);
+        if (entry != null) {
+            evict(username, entry);
+        }
+    }
+
+    /**
+     * Evicts every key and stops the sweeper
+     */
+    public void close() {
+        sweeper.shutdownNow();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            evict(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Evicts the keys that have not been used for the idle time
+     */
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            if (now - entry.getValue().lastAccess >= idleTimeMillis) {
+                evict(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Evicts the least recently used keys until the keyring fits its capacity. The keyring holds the keys of the users
+     * logged in on this instance, so a linear search is cheap enough
+     */
+    private void evictLeastRecentlyUsed() {
+        while (entries.size() > capacity) {
+            Map.Entry<String, Entry> eldest = null;
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                if (eldest == null || entry.getValue().lastAccess < eldest.getValue().lastAccess) {
+                    eldest = entry;
+                }
+            }
+            if (eldest == null) {
+                return;
+            }
+            evict(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    /**
+     * Removes the entry unless it has been replaced in the meantime, then wipes it
+     *
+     * @param username username of the user
+     * @param entry    entry to be evicted
+     */
+    private void evict(String username, Entry entry) {
+        if (entries.remove(username, entry)) {
+            evictions.incrementAndGet();
+            entry.wipe();
+        }
+    }
+
+    /**
+     * Computes the value the password is checked against, without keeping the password itself
+     *
+     * @param salt     random value unique to the entry
+     * @param password password of the user
+     * @return salted hash of the password
+     */
+    private static byte[] computeVerifier(byte[] salt, String password) {
+        try {
+            MessageDigest digest = CryptoContext.getMessageDigest("SHA-256");
+            digest.update(salt);
+            return digest.digest(password.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException exception) {
+            throw new IllegalStateException("SHA-256 is not supported", exception);
+        }
+    }
+
+    /**
+     * Gets the number of unlocked keys
+     *
+     * @return number of keys in the keyring
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Getter for the hit count
+     *
+     * @return number of keys handed out without decrypting the key file
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Getter for the miss count
+     *
+     * @return number of keys decrypted from the key file
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Getter for the eviction count
+     *
+     * @return number of keys evicted from the keyring
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+}
@@ -0,0 +1,205 @@
+package srcprotect.certs;
+
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
+import org.bouncycastle.cert.ocsp.*;
+import org.bouncycastle.operator.ContentVerifierProvider;
+import org.bouncycastle.operator.DigestCalculatorProvider;
+import org.bouncycastle.operator.OperatorCreationException;
+import srcprotect.crypt.CryptoContext;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.cert.CRLReason;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Checks the revocation status of certificates with the {@link OCSPResponder} of another instance. Verified answers
+ * are cached, so that repeated checks of the same certificate do not reach the responder until the answer expires.
+ * An unreachable responder is reported as an error rather than as a good status, the caller decides how to fail
+ * <p>
+ * The responder caches its signed responses, so requests carry no nonce. Instead, a response is accepted only while it
+ * is fresh: it must have been produced within the validity period and its next update must still be ahead. An old
+ * response replayed by whatever listens on the responder port is rejected like any other invalid answer
+ */
+public class OCSPClient {
+
+    /**
+     * Verified status of a certificate along with the time it stops being valid
+     */
+    private static class CachedStatus {
+
+        private final RevocationIndex.Revocation revocation;
+        private final long expiresAt;
+
+        private CachedStatus(RevocationIndex.Revocation revocation, long expiresAt) {
+            this.revocation = revocation;
+            this.expiresAt = expiresAt;
+        }
+
+    }
+
+    private final URL responderURL;
+    private final X509CertificateHolder issuer;
+    private final DigestCalculatorProvider digestCalculatorProvider;
+    private final ContentVerifierProvider verifierProvider;
+    private final long ttlMillis;
+    private final int timeoutMillis;
+
+    private final Map<BigInteger, CachedStatus> statuses = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a client for the responder
+     *
+     * @param responderURL  location of the responder
+     * @param issuer        certificate of the Certificate Authority, the responses must be signed with its key
+     * @param ttlMillis     maximum time an answer is cached for, older answers are rejected as stale
+     * @param timeoutMillis maximum time to wait for the responder
+     * @throws IOException if unable to use the CA certificate for verifying responses
+     */
+    public OCSPClient(URL responderURL, X509Certificate issuer, long ttlMillis, int timeoutMillis) throws IOException {
+        this.responderURL = responderURL;
+        this.ttlMillis = ttlMillis;
+        this.timeoutMillis = timeoutMillis;
+        try {
+            this.issuer = new JcaX509CertificateHolder(issuer);
+            digestCalculatorProvider = CryptoContext.getDigestCalculatorProvider();
+            verifierProvider = CryptoContext.buildContentVerifierProvider(issuer.getPublicKey());
+        } catch (CertificateEncodingException | OperatorCreationException exception) {
+            throw new IOException("Unable to verify responses with the CA certificate", exception);
+        }
+    }
+
+    /**
+     * Gets the revocation status of the certificate, from the cache if possible
+     *
+     * @param certificate certificate to be checked
+     * @return details about the revocation, or null if the certificate is not revoked
+     * @throws IOException if the responder cannot be reached or does not give a valid answer
+     */
+    public RevocationIndex.Revocation getRevocation(X509Certificate certificate) throws IOException {
+        BigInteger serialNumber = certificate.getSerialNumber();
+        CachedStatus cached = statuses.get(serialNumber);
+        if (cached != null && cached.expiresAt > System.currentTimeMillis()) {
+            return cached.revocation;
+        }
+
+        cached = query(serialNumber);
+        statuses.put(serialNumber, cached);
+        return cached.revocation;
+    }
+
+    /**
+     * Asks the responder about the certificate and verifies the answer
+     *
+     * @param serialNumber serial number of the certificate
+     * @return verified status of the certificate
+     * @throws IOException if the responder cannot be reached or does not give a valid answer
+     */
+    private CachedStatus query(BigInteger serialNumber) throws IOException {
+        try {
+            CertificateID certificateID = new CertificateID(
+                    digestCalculatorProvider.get(CertificateID.HASH_SHA1),
+                    issuer,
+                    serialNumber
+            );
+            byte[] request = new OCSPReqBuilder().addRequest(certificateID).build().getEncoded();
+
+            OCSPResp response = new OCSPResp(send(request));
+            if (response.getStatus() != OCSPRespBuilder.SUCCESSFUL) {
+                throw new IOException("OCSP responder returned status " + response.getStatus());
+            }
+
+            BasicOCSPResp basicResponse = (BasicOCSPResp) response.getResponseObject();
+            if (!basicResponse.isSignatureValid(verifierProvider)) {
+                throw new IOException("OCSP response was not signed by the Certificate Authority");
+            }
+
+            for (SingleResp singleResponse : basicResponse.getResponses()) {
+                if (singleResponse.getCertID().equals(certificateID)) {
+                    return toCachedStatus(singleResponse);
+                }
+            }
+            throw new IOException("OCSP response does not contain the requested certificate");
+        } catch (OperatorCreationException | OCSPException exception) {
+            throw new IOException("Unable to process OCSP response", exception);
+        }
+    }
+
+    /**
+     * Converts a single verified answer to its cached form, the answer is not cached past its next update
+     *
+     * @param singleResponse answer about a single certificate
+     * @return status of the certificate
+     * @throws IOException if the answer is stale or the responder does not know the certificate
+     */
+    private CachedStatus toCachedStatus(SingleResp singleResponse) throws IOException {
+        long now = System.currentTimeMillis();
+        Date thisUpdate = singleResponse.getThisUpdate();
+        Date nextUpdate = singleResponse.getNextUpdate();
+        if (thisUpdate == null || thisUpdate.getTime() < now - ttlMillis) {
+            throw new IOException("OCSP response was produced too long ago, it might be replayed");
+        }
+        if (nextUpdate == null || nextUpdate.getTime() <= now) {
+            throw new IOException("OCSP response has expired, it might be replayed");
+        }
+        long expiresAt = Math.min(now + ttlMillis, nextUpdate.getTime());
+
+        CertificateStatus status = singleResponse.getCertStatus();
+        if (status == CertificateStatus.GOOD) {
+            return new CachedStatus(null, expiresAt);
+        }
+        if (status instanceof RevokedStatus) {
+            RevokedStatus revokedStatus = (RevokedStatus) status;
+            CRLReason reason = revokedStatus.hasRevocationReason()
+                    ? CRLReason.values()[revokedStatus.getRevocationReason()]
+                    : CRLReason.UNSPECIFIED;
+            return new CachedStatus(new RevocationIndex.Revocation(revokedStatus.getRevocationTime(), reason), expiresAt);
+        }
+        throw new IOException("OCSP responder does not know the certificate");
+    }
+
+    /**
+     * Sends the encoded request to the responder
+     *
+     * @param request encoded OCSP request
+     * @return encoded OCSP response
+     * @throws IOException if an I/O error occurs while communicating with the responder
+     */
+    private byte[] send(byte[] request) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) responderURL.openConnection();
+        try {
+            connection.setConnectTimeout(timeoutMillis);
+            connection.setReadTimeout(timeoutMillis);
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", OCSPResponder.CONTENT_TYPE_REQUEST);
+            connection.setFixedLengthStreamingMode(request.length);
+            try (OutputStream output = connection.getOutputStream()) {
+                output.write(request);
+            }
+
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            try (InputStream input = connection.getInputStream()) {
+                byte[] buffer = new byte[4096];
+                int read;
+                while ((read = input.read(buffer)) != -1) {
+                    response.write(buffer, 0, read);
+                }
+            }
+            return response.toByteArray();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+}
@@ -0,0 +1,284 @@
+package srcprotect.certs;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
+import org.bouncycastle.cert.ocsp.*;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.DigestCalculatorProvider;
+import org.bouncycastle.operator.OperatorCreationException;
+import srcprotect.crypt.CryptoContext;
+import srcprotect.utils.logging.CustomLogger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+
+/**
+ * Answers OCSP requests about the certificates issued by the Certificate Authority over the loopback interface, so
+ * that every instance running on the same host shares the revocation state of the one that started the responder.
+ * Responses are signed once per serial number and served from the cache until the status changes or they expire
+ */
+public class OCSPResponder {
+
+    static final String CONTENT_TYPE_REQUEST = "application/ocsp-request";
+    static final String CONTENT_TYPE_RESPONSE = "application/ocsp-response";
+
+    /**
+     * Signed response along with the time it stops being valid
+     */
+    private static class CachedResponse {
+
+        private final byte[] encoded;
+        private final long expiresAt;
+        private final boolean revoked;
+
+        private CachedResponse(byte[] encoded, long expiresAt, boolean revoked) {
+            this.encoded = encoded;
+            this.expiresAt = expiresAt;
+            this.revoked = revoked;
+        }
+
+    }
+
+    private final HttpServer server;
+    private final ExecutorService handlers;
+
+    private final X509CertificateHolder issuer;
+    private final X509CertificateHolder[] chain;
+    private final RespID responderID;
+    private final DigestCalculatorProvider digestCalculatorProvider;
+    private final Supplier<ContentSigner> signer;
+    private final RevocationIndex revocations;
+    private final long validityMillis;
+
+    private final Map<BigInteger, CachedResponse> responses = new ConcurrentHashMap<>();
+
+    /**
+     * Binds the responder to the loopback interface, it does not answer any requests until started
+     *
+     * @param port           port to listen on
+     * @param issuer         certificate of the Certificate Authority
+     * @param signer         supplies objects for signing with the CA key
+     * @param revocations    revocation index the answers are based on
+     * @param validityMillis time a signed response stays valid
+     * @throws IOException if the port is already in use or any other I/O error occurs
+     */
+    public OCSPResponder(int port, X509Certificate issuer, Supplier<ContentSigner> signer,
+                         RevocationIndex revocations, long validityMillis) throws IOException {
+        try {
+            this.issuer = new JcaX509CertificateHolder(issuer);
+            digestCalculatorProvider = CryptoContext.getDigestCalculatorProvider();
+            responderID = new RespID(
+                    SubjectPublicKeyInfo.getInstance(issuer.getPublicKey().getEncoded()),
+                    digestCalculatorProvider.get(CertificateID.HASH_SHA1)
+            );
+        } catch (CertificateEncodingException | OperatorCreationException | OCSPException exception) {
+            throw new IOException("Unable to identify the responder by the CA certificate", exception);
+        }
+        this.chain = new X509CertificateHolder[]{this.issuer};
+        this.signer = signer;
+        this.revocations = revocations;
+        this.validityMillis = validityMillis;
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        handlers = Executors.newFixedThreadPool(2, runnable -> {
+            Thread handler = new Thread(runnable, "ocsp-responder");
+            handler.setDaemon(true);
+            return handler;
+        });
+        server.setExecutor(handlers);
+        server.createContext("/", this::handle);
+    }
+
+    /**
+     * Starts answering requests
+     */
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stops answering requests
+     */
+    public void stop() {
+        server.stop(0);
+        handlers.shutdownNow();
+    }
+
+    /**
+     * Gets the port the responder listens on
+     *
+     * @return port on the loopback interface
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Discards the cached response for the certificate, must be called whenever its status changes, after the change
+     * has been made in the revocation index
+     *
+     * @param serialNumber serial number of the certificate
+     */
+    public void invalidate(BigInteger serialNumber) {
+        responses.remove(serialNumber);
+    }
+
+    /**
+     * Answers a single OCSP request
+     *
+     * @param exchange HTTP request and response
+     * @throws IOException if an I/O error occurs while communicating with the client
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        byte[] response;
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                response = buildErrorResponse(OCSPRespBuilder.MALFORMED_REQUEST);
+            } else {
+                response = respond(new OCSPReq(readFully(exchange.getRequestBody())));
+            }
+        } catch (IOException exception) {
+            CustomLogger.log(Level.WARNING, "Received a malformed OCSP request", exception);
+            response = buildErrorResponse(OCSPRespBuilder.MALFORMED_REQUEST);
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE_RESPONSE);
+        exchange.sendResponseHeaders(200, response.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(response);
+        }
+    }
+
+    /**
+     * Gets the response for the certificate in the request. Only one certificate per request is supported, and nonces
+     * are ignored, since the responses are signed in advance
+     *
+     * @param request OCSP request
+     * @return encoded OCSP response
+     */
+    private byte[] respond(OCSPReq request) {
+        Req[] certificates = request.getRequestList();
+        if (certificates.length != 1) {
+            return buildErrorResponse(OCSPRespBuilder.MALFORMED_REQUEST);
+        }
+
+        CertificateID certificateID = certificates[0].getCertID();
+        try {
+            if (!certificateID.matchesIssuer(issuer, digestCalculatorProvider)) {
+                return buildErrorResponse(OCSPRespBuilder.UNAUTHORIZED);
+            }
+        } catch (OCSPException exception) {
+            CustomLogger.log(Level.WARNING, "Unable to match the issuer of the requested certificate", exception);
+            return buildErrorResponse(OCSPRespBuilder.INTERNAL_ERROR);
+        }
+
+        BigInteger serialNumber = certificateID.getSerialNumber();
+        while (true) {
+            CachedResponse cached = responses.get(serialNumber);
+            if (cached != null && cached.expiresAt > System.currentTimeMillis()) {
+                return cached.encoded;
+            }
+
+            /* Responses are computed outside of the map, concurrent requests for the same serial may both sign one */
+            cached = buildResponse(certificateID);
+            if (cached == null) {
+                return buildErrorResponse(OCSPRespBuilder.INTERNAL_ERROR);
+            }
+            responses.put(serialNumber, cached);
+
+            /* A revocation made while the response was being signed might have been invalidated before the response
+               was cached, it is signed again then. Revocations are never undone, so this happens at most once */
+            if (cached.revoked == revocations.isRevoked(serialNumber)) {
+                return cached.encoded;
+            }
+            responses.remove(serialNumber, cached);
+        }
+    }
+
+    /**
+     * Signs a response with the current status of the certificate
+     *
+     * @param certificateID identifier of the certificate
+     * @return signed response, or null if any error occurs
+     */
+    private CachedResponse buildResponse(CertificateID certificateID) {
+        long now = System.currentTimeMillis();
+        Date thisUpdate = new Date(now);
+        Date nextUpdate = new Date(now + validityMillis);
+
+        RevocationIndex.Revocation revocation = revocations.get(certificateID.getSerialNumber());
+        CertificateStatus status = revocation == null
+                ? CertificateStatus.GOOD
+                : new RevokedStatus(revocation.getRevocationDate(), revocation.getReason().ordinal());
+
+        BasicOCSPRespBuilder builder = new BasicOCSPRespBuilder(responderID);
+        builder.addResponse(certificateID, status, thisUpdate, nextUpdate, null);
+
+        ContentSigner contentSigner = signer.get();
+        if (contentSigner == null) {
+            return null;
+        }
+
+        try {
+            BasicOCSPResp basicResponse = builder.build(contentSigner, chain, thisUpdate);
+            byte[] encoded = new OCSPRespBuilder().build(OCSPRespBuilder.SUCCESSFUL, basicResponse).getEncoded();
+            return new CachedResponse(encoded, now + validityMillis - TimeUnit.SECONDS.toMillis(1), revocation != null);
+        } catch (OCSPException exception) {
+            CustomLogger.log(Level.WARNING, "Unable to sign OCSP response", exception);
+        } catch (IOException exception) {
+            CustomLogger.log(Level.WARNING, "Unable to encode OCSP response", exception);
+        }
+        return null;
+    }
+
+    /**
+     * Builds an unsigned response that only carries an error status
+     *
+     * @param status OCSP response status
+     * @return encoded OCSP response
+     */
+    private static byte[] buildErrorResponse(int status) {
+        try {
+            return new OCSPRespBuilder().build(status, null).getEncoded();
+        } catch (OCSPException | IOException exception) {
+            CustomLogger.log(Level.WARNING, "Unable to build OCSP error response", exception);
+            return new byte[0];
+        }
+    }
+
+    /**
+     * Reads the whole request body
+     *
+     * @param input request body
+     * @return content of the request body
+     * @throws IOException if an I/O error occurs
+     */
+    private static byte[] readFully(InputStream input) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            content.write(buffer, 0, read);
+        }
+        return content.toByteArray();
+    }
+
+}
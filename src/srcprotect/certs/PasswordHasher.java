@@ -0,0 +1,440 @@
+package srcprotect.certs;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.generators.PKCS5S2ParametersGenerator;
+import org.bouncycastle.crypto.generators.SCrypt;
+import org.bouncycastle.crypto.params.KeyParameter;
+import srcprotect.utils.logging.CustomLogger;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.logging.Level;
+
+/**
+ * Hashes passwords with a configurable, deliberately slow function. Every stored hash carries the scheme and the
+ * parameters it was computed with, in the form $scheme$parameters$salt$hash, so that older hashes can still be verified
+ * and upgraded to the current parameters on the next login. Hashes without a scheme are the legacy iterated SHA-224
+ * hashes salted with the username
+ * <p>
+ * Parameters are read from the system properties srcprotect.password.scheme (scrypt or pbkdf2-sha256),
+ * srcprotect.password.cost, srcprotect.password.blocksize and srcprotect.password.parallelism. If
+ * srcprotect.password.target is set instead, the parameters are calibrated to take that many milliseconds on this host
+ */
+public class PasswordHasher {
+
+    /**
+     * Supported hash functions
+     */
+    public enum Scheme {
+        /* Memory-hard, memory use is 128 * blockSize * 2^cost bytes */
+        SCRYPT("scrypt"),
+        /* Not memory-hard, kept for the hosts where memory is scarce */
+        PBKDF2_SHA256("pbkdf2-sha256");
+
+        private final String id;
+
+        Scheme(String id) {
+            this.id = id;
+        }
+
+        /**
+         * Getter for the ID
+         *
+         * @return name of the scheme in the stored hashes
+         */
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * Finds the scheme by its name in the stored hashes
+         *
+         * @param id name of the scheme
+         * @return scheme with the name
+         * @throws IllegalArgumentException if there is no scheme with the name
+         */
+        public static Scheme fromId(String id) {
+            for (Scheme scheme : values()) {
+                if (scheme.id.equalsIgnoreCase(id)) {
+                    return scheme;
+                }
+            }
+            throw new IllegalArgumentException("Unknown password hash scheme " + id);
+        }
+    }
+
+    /**
+     * Scheme along with its cost parameters
+     */
+    public static class Parameters {
+
+        private final Scheme scheme;
+        private final int cost;
+        private final int blockSize;
+        private final int parallelism;
+
+        /**
+         * Creates scrypt parameters
+         *
+         * @param cost        base 2 logarithm of the CPU and memory cost
+         * @param blockSize   block size, memory use grows linearly with it
+         * @param parallelism number of independent mixing lanes, work grows linearly with it while memory does not
+         * @return scrypt parameters
+         */
+        public static Parameters scrypt(int cost, int blockSize, int parallelism) {
+            return new Parameters(Scheme.SCRYPT, cost, blockSize, parallelism);
+        }
+
+        /**
+         * Creates PBKDF2 parameters
+         *
+         * @param iterations number of HMAC-SHA256 iterations
+         * @return PBKDF2 parameters
+         */
+        public static Parameters pbkdf2(int iterations) {
+            return new Parameters(Scheme.PBKDF2_SHA256, iterations, 0, 1);
+        }
+
+        private Parameters(Scheme scheme, int cost, int blockSize, int parallelism) {
+            this.scheme = scheme;
+            this.cost = cost;
+            this.blockSize = blockSize;
+            this.parallelism = parallelism;
+        }
+
+        /**
+         * Reads the parameters in the form they have in the stored hashes
+         *
+         * @param scheme  scheme of the stored hash
+         * @param encoded parameters of the stored hash
+         * @return parameters
+         * @throws IllegalArgumentException if the parameters are malformed
+         */
+        private static Parameters decode(Scheme scheme, String encoded) {
+            int cost = 0, blockSize = 0, parallelism = 1;
+            for (String parameter : encoded.split(",")) {
+                String[] pair = parameter.split("=", 2);
+                if (pair.length != 2) {
+                    throw new IllegalArgumentException("Malformed password hash parameter " + parameter);
+                }
+                int value = Integer.parseInt(pair[1]);
+                switch (pair[0]) {
+                    case "ln":
+                    case "i":
+                        cost = value;
+                        break;
+                    case "r":
+                        blockSize = value;
+                        break;
+                    case "p":
+                        parallelism = value;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown password hash parameter " + pair[0]);
+                }
+            }
+            return scheme == Scheme.SCRYPT ? scrypt(cost, blockSize, parallelism) : pbkdf2(cost);
+        }
+
+        /**
+         * Writes the parameters in the form they have in the stored hashes
+         *
+         * @return encoded parameters
+         */
+        private String encode() {
+            return scheme == Scheme.SCRYPT
+                    ? "ln=" + cost + ",r=" + blockSize + ",p=" + parallelism
+                    : "i=" + cost;
+        }
+
+        /**
+         * Getter for the scheme
+         *
+         * @return hash function
+         */
+        public Scheme getScheme() {
+            return scheme;
+        }
+
+        /**
+         * Getter for the cost
+         *
+         * @return base 2 logarithm of the scrypt cost, or the number of PBKDF2 iterations
+         */
+        public int getCost() {
+            return cost;
+        }
+
+        /**
+         * Getter for the block size
+         *
+         * @return scrypt block size, 0 for PBKDF2
+         */
+        public int getBlockSize() {
+            return blockSize;
+        }
+
+        /**
+         * Getter for the parallelism
+         *
+         * @return number of scrypt lanes, 1 for PBKDF2
+         */
+        public int getParallelism() {
+            return parallelism;
+        }
+
+        /**
+         * Gets the amount of memory a single hash computation needs
+         *
+         * @return memory use in bytes
+         */
+        public long getMemoryBytes() {
+            return scheme == Scheme.SCRYPT ? 128L * blockSize * (1L << cost) : 0;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (!(object instanceof Parameters)) {
+                return false;
+            }
+            Parameters other = (Parameters) object;
+            return scheme == other.scheme && cost == other.cost
+                    && blockSize == other.blockSize && parallelism == other.parallelism;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((scheme.hashCode() * 31 + cost) * 31 + blockSize) * 31 + parallelism;
+        }
+
+        @Override
+        public String toString() {
+            return scheme.getId() + " " + encode();
+        }
+
+    }
+
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_LENGTH = 32;
+
+    private static final Parameters DEFAULT_SCRYPT = Parameters.scrypt(15, 8, 1);       //32 MiB
+    private static final Parameters DEFAULT_PBKDF2 = Parameters.pbkdf2(310_000);
+
+    private static final long MAX_MEMORY_BYTES = Long.getLong("srcprotect.password.memory", 64) * 1024 * 1024;
+
+    private static volatile Parameters parameters;
+
+    /**
+     * Gets the parameters new hashes are computed with, they are configured or calibrated on the first call
+     *
+     * @return current parameters
+     */
+    public static Parameters getParameters() {
+        if (parameters == null) {
+            synchronized (PasswordHasher.class) {
+                if (parameters == null) {
+                    parameters = configureParameters();
+                }
+            }
+        }
+        return parameters;
+    }
+
+    /**
+     * Sets the parameters new hashes are computed with
+     *
+     * @param newParameters parameters to be used from now on
+     */
+    public static void setParameters(Parameters newParameters) {
+        parameters = newParameters;
+    }
+
+    /**
+     * Hashes the password with a new random salt and the current parameters
+     *
+     * @param password user's password
+     * @return hash in the stored form, along with the scheme, the parameters and the salt
+     */
+    public static String hash(String password) {
+        return hash(password, getParameters());
+    }
+
+    /**
+     * Hashes the password with a new random salt
+     *
+     * @param password   user's password
+     * @param parameters scheme and its cost parameters
+     * @return hash in the stored form, along with the scheme, the parameters and the salt
+     */
+    public static String hash(String password, Parameters parameters) {
+        byte[] salt = new byte[SALT_LENGTH];
+        new SecureRandom().nextBytes(salt);
+
+        Base64.Encoder encoder = Base64.getEncoder().withoutPadding();
+        return "$" + parameters.getScheme().getId()
+                + "$" + parameters.encode()
+                + "$" + encoder.encodeToString(salt)
+                + "$" + encoder.encodeToString(derive(password, salt, parameters));
+    }
+
+    /**
+     * Checks the password against the stored hash, legacy hashes included
+     *
+     * @param password   entered password
+     * @param username   username of the user, the salt of legacy hashes
+     * @param storedHash hash in the stored form
+     * @return true if the password matches, false otherwise
+     */
+    public static boolean verify(String password, String username, String storedHash) {
+        if (storedHash == null) {
+            return false;
+        }
+
+        try {
+            if (!storedHash.startsWith("$")) {
+                String legacyHash = CredentialsManager.getEncodedPasswordHashAsString(password, username.getBytes());
+                return MessageDigest.isEqual(
+                        legacyHash.getBytes(StandardCharsets.US_ASCII),
+                        storedHash.getBytes(StandardCharsets.US_ASCII)
+                );
+            }
+
+            String[] fields = storedHash.split("\\$");
+            if (fields.length != 5) {
+                throw new IllegalArgumentException("Malformed password hash");
+            }
+            Parameters hashParameters = Parameters.decode(Scheme.fromId(fields[1]), fields[2]);
+            byte[] salt = Base64.getDecoder().decode(fields[3]);
+            byte[] expected = Base64.getDecoder().decode(fields[4]);
+
+            return MessageDigest.isEqual(expected, derive(password, salt, hashParameters));
+        } catch (IllegalArgumentException exception) {
+            CustomLogger.log(Level.WARNING, "Stored password hash is malformed", exception);
+        } catch (NoSuchAlgorithmException exception) {
+            CustomLogger.log(Level.WARNING, "Unable to verify legacy password hash, algorithm is not supported", exception);
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether the stored hash was computed with parameters other than the current ones
+     *
+     * @param storedHash hash in the stored form
+     * @return true if the hash should be computed again once the password is known, false otherwise
+     */
+    public static boolean needsRehash(String storedHash) {
+        if (storedHash == null || !storedHash.startsWith("$")) {
+            return true;
+        }
+
+        String[] fields = storedHash.split("\\$");
+        try {
+            return fields.length != 5 || !Parameters.decode(Scheme.fromId(fields[1]), fields[2]).equals(getParameters());
+        } catch (IllegalArgumentException exception) {
+            return true;
+        }
+    }
+
+    /**
+     * Picks the parameters that make a single hash take about the target time on this host. Scrypt gets as much memory
+     * as allowed first, then more lanes if it is still too fast
+     *
+     * @param scheme       hash function
+     * @param parallelism  initial number of scrypt lanes
+     * @param targetMillis desired time of a single hash
+     * @return calibrated parameters
+     */
+    public static Parameters calibrate(Scheme scheme, int parallelism, long targetMillis) {
+        if (scheme == Scheme.PBKDF2_SHA256) {
+            Parameters probe = Parameters.pbkdf2(10_000);
+            measureMillis(probe);
+            double millis = Math.max(measureMillis(probe), 0.01);
+            return Parameters.pbkdf2((int) Math.max(probe.getCost(), probe.getCost() * targetMillis / millis));
+        }
+
+        int blockSize = DEFAULT_SCRYPT.getBlockSize();
+        Parameters candidate = Parameters.scrypt(10, blockSize, parallelism);
+        double millis = measureMillis(candidate);
+
+        /* Each step doubles the time, stop once the next step would overshoot the target */
+        while (millis * 2 <= targetMillis
+                && Parameters.scrypt(candidate.getCost() + 1, blockSize, parallelism).getMemoryBytes() <= MAX_MEMORY_BYTES) {
+            candidate = Parameters.scrypt(candidate.getCost() + 1, blockSize, parallelism);
+            millis = measureMillis(candidate);
+        }
+        int lanes = (int) Math.max(parallelism, parallelism * targetMillis / Math.max(millis, 0.01));
+        return Parameters.scrypt(candidate.getCost(), blockSize, lanes);
+    }
+
+    /**
+     * Reads the parameters from the system properties, or calibrates them if a target time is set
+     *
+     * @return parameters new hashes are computed with
+     */
+    private static Parameters configureParameters() {
+        Scheme scheme;
+        try {
+            scheme = Scheme.fromId(System.getProperty("srcprotect.password.scheme", Scheme.SCRYPT.getId()));
+        } catch (IllegalArgumentException exception) {
+            CustomLogger.log(Level.WARNING, "Unknown password hash scheme selected, using scrypt", exception);
+            scheme = Scheme.SCRYPT;
+        }
+
+        Parameters defaults = scheme == Scheme.SCRYPT ? DEFAULT_SCRYPT : DEFAULT_PBKDF2;
+        int parallelism = Integer.getInteger("srcprotect.password.parallelism", defaults.getParallelism());
+
+        Long target = Long.getLong("srcprotect.password.target");
+        if (target != null) {
+            return calibrate(scheme, parallelism, target);
+        }
+
+        int cost = Integer.getInteger("srcprotect.password.cost", defaults.getCost());
+        return scheme == Scheme.SCRYPT
+                ? Parameters.scrypt(cost, Integer.getInteger("srcprotect.password.blocksize", defaults.getBlockSize()), parallelism)
+                : Parameters.pbkdf2(cost);
+    }
+
+    /**
+     * Computes the raw hash of the password
+     *
+     * @param password   user's password
+     * @param salt       random salt
+     * @param parameters scheme and its cost parameters
+     * @return raw hash
+     */
+    private static byte[] derive(String password, byte[] salt, Parameters parameters) {
+        byte[] passwordBytes = password.getBytes(StandardCharsets.UTF_8);
+        try {
+            if (parameters.getScheme() == Scheme.SCRYPT) {
+                return SCrypt.generate(
+                        passwordBytes, salt,
+                        1 << parameters.getCost(), parameters.getBlockSize(), parameters.getParallelism(),
+                        HASH_LENGTH
+                );
+            }
+
+            PKCS5S2ParametersGenerator generator = new PKCS5S2ParametersGenerator(new SHA256Digest());
+            generator.init(passwordBytes, salt, parameters.getCost());
+            return ((KeyParameter) generator.generateDerivedParameters(HASH_LENGTH * 8)).getKey();
+        } finally {
+            Arrays.fill(passwordBytes, (byte) 0);
+        }
+    }
+
+    /**
+     * Measures a single hash computation
+     *
+     * @param parameters scheme and its cost parameters
+     * @return time of the computation in milliseconds
+     */
+    private static double measureMillis(Parameters parameters) {
+        long start = System.nanoTime();
+        derive("calibration", new byte[SALT_LENGTH], parameters);
+        return (System.nanoTime() - start) / 1_000_000.0;
+    }
+
+}
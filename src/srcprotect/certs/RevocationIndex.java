@@ -0,0 +1,307 @@
+package srcprotect.certs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.cert.CRLReason;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory index of all revoked certificates, keyed by serial number. It is the source of truth for revocation checks,
+ * the CRL is only its published form
+ * <p>
+ * Revocations made by this instance are also appended to a log before they take effect, so that a revocation is not
+ * lost if the application stops before the next CRL is published. Every instance on the same host appends to the same
+ * log, which is locked while it is read or written. Every line of the log has the form serial;time;reason
+ */
+public class RevocationIndex {
+
+    /**
+     * Details about a single revocation
+     */
+    public static class Revocation {
+
+        private final Date revocationDate;
+        private final CRLReason reason;
+
+        public Revocation(Date revocationDate, CRLReason reason) {
+            this.revocationDate = revocationDate;
+            this.reason = reason;
+        }
+
+        /**
+         * Getter for the revocation date
+         *
+         * @return time of the revocation
+         */
+        public Date getRevocationDate() {
+            return revocationDate;
+        }
+
+        /**
+         * Getter for the reason
+         *
+         * @return reason of the revocation
+         */
+        public CRLReason getReason() {
+            return reason;
+        }
+
+    }
+
+    private static final String SEPARATOR = ";";
+
+    private final Map<BigInteger, Revocation> revocations = new ConcurrentHashMap<>();
+    private File log;
+
+    /**
+     * Adds the certificate to the index unless it is already revoked
+     *
+     * @param serialNumber   serial number of the revoked certificate
+     * @param revocationDate time of the revocation
+     * @param reason         reason of the revocation
+     * @return true if the certificate was not revoked before, false otherwise
+     */
+    public boolean add(BigInteger serialNumber, Date revocationDate, CRLReason reason) {
+        return revocations.putIfAbsent(serialNumber, new Revocation(revocationDate, reason)) == null;
+    }
+
+    /**
+     * Appends the revocation to the log and forces it to the disk, then adds the certificate to the index. Once this
+     * method returns, the revocation survives a crash even if no CRL has been published since
+     *
+     * @param serialNumber   serial number of the revoked certificate
+     * @param revocationDate time of the revocation
+     * @param reason         reason of the revocation
+     * @return true if the certificate was not revoked before, false otherwise
+     * @throws IOException if unable to append to the log, the certificate is not added to the index then
+     */
+    public synchronized boolean record(BigInteger serialNumber, Date revocationDate, CRLReason reason) throws IOException {
+        if (revocations.containsKey(serialNumber)) {
+            return false;
+        }
+        if (log != null) {
+            append(toLine(serialNumber, new Revocation(revocationDate, reason)));
+        }
+        return add(serialNumber, revocationDate, reason);
+    }
+
+    /**
+     * Replays the log and appends every revocation recorded from now on to it
+     *
+     * @param location location of the log
+     * @return revocations found in the log by serial number, they are not added to the index
+     * @throws IOException if an I/O error occurs while reading the log
+     */
+    public synchronized Map<BigInteger, Revocation> openLog(File location) throws IOException {
+        log = location;
+        return readLog();
+    }
+
+    /**
+     * Replays the log, which might have been appended to by the other instances on the same host since it was opened.
+     * A line left incomplete by a crash while appending is discarded and cut off the log, so that the next revocation
+     * starts on a line of its own
+     *
+     * @return revocations found in the log by serial number, they are not added to the index
+     * @throws IOException if an I/O error occurs while reading the log
+     */
+    public synchronized Map<BigInteger, Revocation> readLog() throws IOException {
+        if (log == null) {
+            return new LinkedHashMap<>();
+        }
+
+        try (FileChannel lockChannel = openLock()) {
+            FileLock lock = lockChannel.lock();
+            try {
+                return parseLog(true);
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * Replaces the log with the logged revocations that are not published in a base CRL yet. The log is read again
+     * while it is locked, so revocations appended by the other instances are kept even if this instance has not seen
+     * them yet. The new log is written to a temporary file first, so the log is never left half written
+     *
+     * @param published serial numbers of the certificates listed in the stored base CRL
+     * @throws IOException if an I/O error occurs while writing the log
+     */
+    public synchronized void compactLog(Set<BigInteger> published) throws IOException {
+        if (log == null) {
+            return;
+        }
+
+        try (FileChannel lockChannel = openLock()) {
+            FileLock lock = lockChannel.lock();
+            try {
+                ByteArrayOutputStream content = new ByteArrayOutputStream();
+                for (Map.Entry<BigInteger, Revocation> revocation : parseLog(false).entrySet()) {
+                    if (!published.contains(revocation.getKey())) {
+                        content.write(toLine(revocation.getKey(), revocation.getValue()));
+                    }
+                }
+
+                File compacted = new File(log + ".tmp");
+                try (FileChannel channel = FileChannel.open(compacted.toPath(),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    ByteBuffer buffer = ByteBuffer.wrap(content.toByteArray());
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    channel.force(true);
+                }
+                java.nio.file.Files.move(compacted.toPath(), log.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * Checks whether the certificate is revoked
+     *
+     * @param serialNumber serial number of the certificate
+     * @return true if the certificate is revoked, false otherwise
+     */
+    public boolean isRevoked(BigInteger serialNumber) {
+        return revocations.containsKey(serialNumber);
+    }
+
+    /**
+     * Gets the details about the revocation of the certificate
+     *
+     * @param serialNumber serial number of the certificate
+     * @return details about the revocation, or null if the certificate is not revoked
+     */
+    public Revocation get(BigInteger serialNumber) {
+        return revocations.get(serialNumber);
+    }
+
+    /**
+     * Gets all of the revocations
+     *
+     * @return read-only view of the revocations mapped by serial number
+     */
+    public Map<BigInteger, Revocation> getRevocations() {
+        return Collections.unmodifiableMap(revocations);
+    }
+
+    /**
+     * @return number of revoked certificates
+     */
+    public int size() {
+        return revocations.size();
+    }
+
+    /**
+     * Appends the line to the log and forces it to the disk before returning
+     *
+     * @param line encoded revocation
+     * @throws IOException if an I/O error occurs while writing the log
+     */
+    private void append(byte[] line) throws IOException {
+        try (FileChannel lockChannel = openLock()) {
+            FileLock lock = lockChannel.lock();
+            try (FileChannel channel = FileChannel.open(log.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long position = channel.size();
+
+                /* A revocation must never be glued to a line that was not terminated */
+                ByteBuffer lastByte = ByteBuffer.allocate(1);
+                boolean terminated = position == 0 || (channel.read(lastByte, position - 1) == 1 && lastByte.get(0) == '\n');
+
+                ByteBuffer buffer = ByteBuffer.allocate(line.length + (terminated ? 0 : 1));
+                if (!terminated) {
+                    buffer.put((byte) '\n');
+                }
+                buffer.put(line);
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                channel.force(false);
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * Reads every revocation from the log, the log must be locked
+     *
+     * @param truncate flag that indicates whether a line left incomplete by a crash is cut off the log
+     * @return revocations found in the log by serial number
+     * @throws IOException if an I/O error occurs while reading the log
+     */
+    private Map<BigInteger, Revocation> parseLog(boolean truncate) throws IOException {
+        Map<BigInteger, Revocation> logged = new LinkedHashMap<>();
+        if (!log.exists()) {
+            return logged;
+        }
+
+        byte[] content = java.nio.file.Files.readAllBytes(log.toPath());
+        int lineStart = 0;
+        for (int index = 0; index < content.length; ++index) {
+            if (content[index] != '\n') {
+                continue;
+            }
+
+            String[] fields = new String(content, lineStart, index - lineStart, StandardCharsets.US_ASCII).trim().split(SEPARATOR);
+            lineStart = index + 1;
+            try {
+                if (fields.length == 3) {
+                    logged.putIfAbsent(
+                            new BigInteger(fields[0]),
+                            new Revocation(new Date(Long.parseLong(fields[1])), CRLReason.valueOf(fields[2]))
+                    );
+                }
+            } catch (IllegalArgumentException exception) {
+                /* Not a revocation, skipped */
+            }
+        }
+
+        if (truncate && lineStart < content.length) {
+            try (FileChannel channel = FileChannel.open(log.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(lineStart);
+                channel.force(true);
+            }
+        }
+        return logged;
+    }
+
+    /**
+     * Opens the file the log is locked with. The log itself is replaced when it is compacted, so it cannot be locked
+     * directly
+     *
+     * @return channel of the lock file
+     * @throws IOException if unable to open the lock file
+     */
+    private FileChannel openLock() throws IOException {
+        return FileChannel.open(new File(log + ".lock").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Encodes a single revocation
+     *
+     * @param serialNumber serial number of the revoked certificate
+     * @param revocation   details about the revocation
+     * @return line of the log
+     */
+    private static byte[] toLine(BigInteger serialNumber, Revocation revocation) {
+        return (serialNumber + SEPARATOR + revocation.getRevocationDate().getTime() + SEPARATOR
+                + revocation.getReason().name() + "\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+}
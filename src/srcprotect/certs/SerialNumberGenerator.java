@@ -0,0 +1,110 @@
+package srcprotect.certs;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Hands out certificate serial numbers that never repeat, not even after a restart. Serial numbers are reserved
+ * in blocks and the end of the latest block is stored on the file system before any number from it is handed out,
+ * so a restart skips whatever was left of the block instead of reusing it
+ * <p>
+ * Every instance on the same host reserves its blocks from the same file. The file is locked while a block is
+ * reserved, and the new block starts after the end stored by any instance, so the blocks of two instances never
+ * overlap and the stored end never moves backwards
+ */
+public class SerialNumberGenerator {
+
+    private static final long BLOCK_SIZE = 1000;
+
+    private final File location;
+
+    private long next;
+    private long reservedUntil;
+
+    /**
+     * Continues after the last block reserved by the previous run
+     *
+     * @param location a place where the end of the latest reserved block is stored
+     * @throws IOException if an I/O error occurs while reading the stored block
+     */
+    public SerialNumberGenerator(File location) throws IOException {
+        this.location = location;
+
+        /* Earlier versions used the issuing time in milliseconds as the serial number, those must not be reused either */
+        next = Math.max(readStored(), System.currentTimeMillis());
+        reservedUntil = next;
+    }
+
+    /**
+     * Hands out the next serial number, safe to call from many threads at once
+     *
+     * @return serial number that has never been handed out before
+     * @throws UncheckedIOException if unable to store the reservation of a new block
+     */
+    public synchronized BigInteger next() {
+        if (next >= reservedUntil) {
+            try {
+                reserve();
+            } catch (IOException exception) {
+                throw new UncheckedIOException("Unable to reserve serial numbers", exception);
+            }
+        }
+        return BigInteger.valueOf(next++);
+    }
+
+    /**
+     * Reserves a new block after both the numbers handed out by this instance and the block stored by any other
+     * instance. The end of the new block replaces the stored value in a single step so that a crash cannot leave it
+     * corrupt
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    private void reserve() throws IOException {
+        try (FileChannel lockChannel = FileChannel.open(new File(location + ".lock").toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            FileLock lock = lockChannel.lock();
+            try {
+                long blockStart = Math.max(readStored(), next);
+                long blockEnd = blockStart + BLOCK_SIZE;
+
+                File temporary = new File(location + ".tmp");
+                try (FileOutputStream output = new FileOutputStream(temporary)) {
+                    output.write(Long.toString(blockEnd).getBytes(StandardCharsets.US_ASCII));
+                    output.getFD().sync();
+                }
+                Files.move(temporary.toPath(), location.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+                next = blockStart;
+                reservedUntil = blockEnd;
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * Reads the end of the latest block reserved by any instance
+     *
+     * @return first serial number after the stored block, or 0 if no block has been reserved yet
+     * @throws IOException if an I/O error occurs or the stored value is corrupt
+     */
+    private long readStored() throws IOException {
+        if (!location.exists()) {
+            return 0;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(location))) {
+            String line = reader.readLine();
+            return line == null || line.trim().isEmpty() ? 0 : Long.parseLong(line.trim());
+        } catch (NumberFormatException exception) {
+            throw new IOException("Serial number file is corrupt", exception);
+        }
+    }
+
+}
@@ -0,0 +1,132 @@
+package srcprotect.crypt;
+
+import srcprotect.utils.logging.CustomLogger;
+
+import java.io.*;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongConsumer;
+import java.util.logging.Level;
+
+/**
+ * Decrypts many files sent by a single sender in parallel, straight into memory. The bundle is decrypted only as
+ * a whole: if any of the files cannot be decrypted or verified, none of the plaintexts is handed out
+ */
+public class BatchDecryptor {
+
+    /* Shared by all batch decryptors, a bundle is usually many small files so the work is mostly CPU bound */
+    private static final ExecutorService WORKERS = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(),
+            runnable -> {
+                Thread worker = new Thread(runnable, "batch-decryptor");
+                worker.setDaemon(true);
+                return worker;
+            }
+    );
+
+    private final KeyPair recipientKeyPair;
+    private final X509Certificate recipientCertificate;
+    private final X509Certificate senderCertificate;
+
+    /**
+     * Creates a batch decryptor for the files the sender sent to the recipient
+     *
+     * @param recipientKeyPair     key pair of the recipient, used to decrypt every file
+     * @param recipientCertificate certificate of the recipient
+     * @param senderCertificate    certificate of the sender, every file must be signed with the sender's key
+     */
+    public BatchDecryptor(KeyPair recipientKeyPair, X509Certificate recipientCertificate, X509Certificate senderCertificate) {
+        this.recipientKeyPair = recipientKeyPair;
+        this.recipientCertificate = recipientCertificate;
+        this.senderCertificate = senderCertificate;
+    }
+
+    /**
+     * Decrypts every file in parallel and verifies the signature of the sender on each of them. Once any file fails
+     * or the thread is interrupted, the files not started yet are skipped, and the ones in progress finish so that
+     * every plaintext decrypted so far is wiped before this method returns
+     *
+     * @param files    locations of the encrypted files, their names without the .encrypted extension must be unique
+     * @param progress receives the number of bytes processed at every step, called from the worker threads
+     * @return plaintext of every file by the name of the file without the .encrypted extension, or null if any of
+     * the files cannot be decrypted and verified
+     */
+    public Map<String, byte[]> decryptAll(Collection<File> files, LongConsumer progress) {
+        Map<String, Future<byte[]>> plaintexts = new LinkedHashMap<>();
+        Map<String, byte[]> decrypted = new LinkedHashMap<>();
+        AtomicBoolean aborted = new AtomicBoolean();
+        boolean handedOut = false;
+        try {
+            for (File file : files) {
+                String fileName = file.getName().replace(".encrypted", "");
+                if (plaintexts.containsKey(fileName)) {
+                    CustomLogger.log(Level.WARNING, "Bundle contains more than one " + fileName,
+                            new IllegalArgumentException(file.toString()));
+                    return null;
+                }
+                plaintexts.put(fileName, WORKERS.submit(() -> aborted.get() ? null : decrypt(file, progress)));
+            }
+
+            for (Map.Entry<String, Future<byte[]>> plaintext : plaintexts.entrySet()) {
+                byte[] content = plaintext.getValue().get();
+                if (content == null) {
+                    break;
+                }
+                decrypted.put(plaintext.getKey(), content);
+            }
+            if (decrypted.size() == plaintexts.size()) {
+                handedOut = true;
+                return decrypted;
+            }
+        } catch (ExecutionException exception) {
+            CustomLogger.log(Level.WARNING, "Unable to decrypt a file of the bundle", exception.getCause());
+        } catch (InterruptedException exception) {
+            CustomLogger.log(Level.WARNING, "Interrupted while decrypting the bundle", exception);
+            Thread.currentThread().interrupt();
+        } finally {
+            /* The workers are not interrupted, a plaintext dropped by a cancelled future could not be wiped anymore */
+            if (!handedOut) {
+                aborted.set(true);
+                for (byte[] plaintext : ChunkedEncryptor.awaitChunks(new ArrayList<>(plaintexts.values()))) {
+                    Arrays.fill(plaintext, (byte) 0);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Decrypts a single file of the bundle into memory
+     *
+     * @param file     location of the encrypted file
+     * @param progress receives the number of bytes processed at every step
+     * @return verified plaintext, or null if the file cannot be decrypted or verified
+     */
+    private byte[] decrypt(File file, LongConsumer progress) {
+        /* The plaintext is never larger than the encrypted file, so the buffer does not have to grow */
+        WipeableOutputStream plaintext = new WipeableOutputStream((int) Math.min(file.length(), Integer.MAX_VALUE - 8));
+
+        try {
+            boolean verified = false;
+            if (ChunkedDecryptor.isChunkedContainer(file)) {
+                try (ChunkedDecryptor decryptor = new ChunkedDecryptor(recipientKeyPair, recipientCertificate, senderCertificate)) {
+                    verified = decryptor.open(file) && decryptor.decrypt(plaintext, progress);
+                }
+            } else {
+                Decryptor decryptor = new Decryptor(recipientKeyPair, recipientCertificate, senderCertificate);
+                try (InputStream input = new ProgressInputStream(new BufferedInputStream(new FileInputStream(file)), progress)) {
+                    verified = decryptor.decrypt(input, plaintext);
+                } catch (IOException exception) {
+                    CustomLogger.log(Level.WARNING, "An I/O error occurred, unable to read " + file, exception);
+                }
+            }
+            return verified ? plaintext.toByteArray() : null;
+        } finally {
+            plaintext.wipe();
+        }
+    }
+
+}
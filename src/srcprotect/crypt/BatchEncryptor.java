@@ -0,0 +1,373 @@
+package srcprotect.crypt;
+
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.cms.SignerInfoGenerator;
+import org.bouncycastle.operator.OperatorCreationException;
+import srcprotect.certs.CredentialsManager;
+import srcprotect.users.User;
+import srcprotect.utils.Files;
+import srcprotect.utils.logging.CustomLogger;
+
+import java.io.*;
+import java.nio.file.StandardCopyOption;
+import java.security.KeyPair;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+
+/**
+ * Encrypts many files for many recipients in parallel on behalf of a single sender
+ */
+public class BatchEncryptor {
+
+    /**
+     * Outcome of encrypting a single file for a single recipient
+     */
+    public enum Status {
+        ENCRYPTED,
+        FAILED
+    }
+
+    /**
+     * A file to be encrypted with the specified algorithm for every recipient in the set
+     */
+    public static class Job {
+
+        private final File file;
+        private final Collection<User> recipients;
+        private final ASN1ObjectIdentifier algorithm;
+
+        public Job(File file, Collection<User> recipients, ASN1ObjectIdentifier algorithm) {
+            this.file = file;
+            this.recipients = recipients;
+            this.algorithm = algorithm;
+        }
+
+        /**
+         * Getter for the file
+         *
+         * @return location of the plaintext file
+         */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * Getter for the recipients
+         *
+         * @return users the file is sent to
+         */
+        public Collection<User> getRecipients() {
+            return recipients;
+        }
+
+        /**
+         * Getter for the algorithm
+         *
+         * @return symmetric algorithm used to encrypt the file
+         */
+        public ASN1ObjectIdentifier getAlgorithm() {
+            return algorithm;
+        }
+
+    }
+
+    /**
+     * Status of a job for one of its recipients
+     */
+    public static class Result {
+
+        private final Job job;
+        private final User recipient;
+        private final Status status;
+        private final File encryptedFile;
+
+        private Result(Job job, User recipient, Status status, File encryptedFile) {
+            this.job = job;
+            this.recipient = recipient;
+            this.status = status;
+            this.encryptedFile = encryptedFile;
+        }
+
+        /**
+         * Getter for the job
+         *
+         * @return job this result belongs to
+         */
+        public Job getJob() {
+            return job;
+        }
+
+        /**
+         * Getter for the recipient
+         *
+         * @return user the file was encrypted for
+         */
+        public User getRecipient() {
+            return recipient;
+        }
+
+        /**
+         * Getter for the status
+         *
+         * @return outcome of the encryption
+         */
+        public Status getStatus() {
+            return status;
+        }
+
+        /**
+         * Getter for the encrypted file
+         *
+         * @return location of the encrypted file in the recipient's directory
+         */
+        public File getEncryptedFile() {
+            return encryptedFile;
+        }
+
+    }
+
+    private final KeyPair senderKeyPair;
+    private final X509Certificate senderCertificate;
+
+    private final Map<String, X509Certificate> recipientCertificates = new ConcurrentHashMap<>();
+    private final ExecutorService workers;
+
+    /* The signer keeps the state of the signature between calls, so every worker keeps a signer of its own */
+    private final ThreadLocal<SignerInfoGenerator> signerInfoGenerator = new ThreadLocal<>();
+    private final Set<File> targetsInUse = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Creates a batch encryptor that uses one worker per available processor
+     *
+     * @param senderKeyPair     key pair of the sender, used to sign every file
+     * @param senderCertificate certificate of the sender, attached to every file
+     */
+    public BatchEncryptor(KeyPair senderKeyPair, X509Certificate senderCertificate) {
+        this(senderKeyPair, senderCertificate, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a batch encryptor with the specified number of workers
+     *
+     * @param senderKeyPair     key pair of the sender, used to sign every file
+     * @param senderCertificate certificate of the sender, attached to every file
+     * @param workerCount       maximum number of files encrypted at the same time
+     */
+    public BatchEncryptor(KeyPair senderKeyPair, X509Certificate senderCertificate, int workerCount) {
+        this.senderKeyPair = senderKeyPair;
+        this.senderCertificate = senderCertificate;
+
+        workers = Executors.newFixedThreadPool(workerCount, runnable -> {
+            Thread worker = new Thread(runnable, "batch-encryptor");
+            worker.setDaemon(true);
+            return worker;
+        });
+    }
+
+    /**
+     * Schedules every job, each job is signed and encrypted once for all of its recipients. If more than one job of
+     * the batch would write the same file for the same recipient, only the first one does, the others fail for that
+     * recipient
+     *
+     * @param jobs files to be encrypted along with their recipients and algorithms
+     * @return pending results of every job, one for each of its recipients
+     */
+    public List<Future<List<Result>>> submit(Collection<Job> jobs) {
+        List<Future<List<Result>>> results = new ArrayList<>();
+        Set<File> batchTargets = new HashSet<>();
+        for (Job job : jobs) {
+            String fileName = job.getFile().getName() + ".encrypted";
+
+            List<User> recipients = new ArrayList<>();
+            List<Result> rejected = new ArrayList<>();
+            for (User recipient : job.getRecipients()) {
+                File encryptedFile = getEncryptedFile(recipient, fileName);
+                if (batchTargets.add(encryptedFile)) {
+                    recipients.add(recipient);
+                } else {
+                    CustomLogger.log(Level.WARNING, "Batch sends more than one " + fileName + " to " + recipient,
+                            new IllegalArgumentException(job.getFile().toString()));
+                    rejected.add(new Result(job, recipient, Status.FAILED, encryptedFile));
+                }
+            }
+            results.add(workers.submit(() -> encrypt(job, recipients, rejected)));
+        }
+        return results;
+    }
+
+    /**
+     * Encrypts every job for all of its recipients and waits for all of them to finish
+     *
+     * @param jobs files to be encrypted along with their recipients and algorithms
+     * @return results, one for each file and recipient pair
+     * @throws InterruptedException if interrupted while waiting for the workers
+     */
+    public List<Result> encryptAll(Collection<Job> jobs) throws InterruptedException {
+        List<Result> results = new ArrayList<>();
+        for (Future<List<Result>> result : submit(jobs)) {
+            try {
+                results.addAll(result.get());
+            } catch (ExecutionException exception) {
+                CustomLogger.log(Level.WARNING, "Batch encryption job failed unexpectedly", exception);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Stops accepting new jobs, already submitted jobs are still completed
+     */
+    public void shutdown() {
+        workers.shutdown();
+    }
+
+    /**
+     * Encrypts the file of the job into a single envelope that every recipient can open,
+     * then stores a copy of it in the directory of every recipient. A recipient whose file is being written by another
+     * job at the same time is skipped
+     *
+     * @param job        file to be encrypted along with its recipients and the algorithm
+     * @param recipients recipients of the job the file is encrypted for
+     * @param results    results of the recipients already rejected
+     * @return results of the job, one for each of its recipients
+     */
+    private List<Result> encrypt(Job job, List<User> recipients, List<Result> results) {
+        String fileName = job.getFile().getName() + ".encrypted";
+
+        List<User> claimedRecipients = new ArrayList<>();
+        List<X509Certificate> certificates = new ArrayList<>();
+        try {
+            for (User recipient : recipients) {
+                File encryptedFile = getEncryptedFile(recipient, fileName);
+                X509Certificate recipientCertificate = getRecipientCertificate(recipient);
+                if (recipientCertificate == null) {
+                    results.add(new Result(job, recipient, Status.FAILED, encryptedFile));
+                } else if (!targetsInUse.add(encryptedFile)) {
+                    CustomLogger.log(Level.WARNING, "Another job is already writing " + encryptedFile,
+                            new IllegalStateException(job.getFile().toString()));
+                    results.add(new Result(job, recipient, Status.FAILED, encryptedFile));
+                } else {
+                    claimedRecipients.add(recipient);
+                    certificates.add(recipientCertificate);
+                }
+            }
+
+            if (!claimedRecipients.isEmpty()) {
+                encrypt(job, fileName, claimedRecipients, certificates, results);
+            }
+            return results;
+        } finally {
+            for (User recipient : claimedRecipients) {
+                targetsInUse.remove(getEncryptedFile(recipient, fileName));
+            }
+        }
+    }
+
+    /**
+     * Encrypts the file of the job for the recipients whose files the job has claimed
+     *
+     * @param job          file to be encrypted along with the algorithm
+     * @param fileName     name of the encrypted file
+     * @param recipients   recipients the file is encrypted for
+     * @param certificates certificates of the recipients
+     * @param results      receives the result of every recipient
+     */
+    private void encrypt(Job job, String fileName, List<User> recipients, List<X509Certificate> certificates,
+                         List<Result> results) {
+        File encryptedFile = getEncryptedFile(recipients.get(0), fileName);
+        boolean encrypted = false;
+
+        SignerInfoGenerator signer = getSignerInfoGenerator();
+        if (signer != null) {
+            Encryptor encryptor = new Encryptor(senderKeyPair, senderCertificate, certificates, signer);
+            try (InputStream input = new BufferedInputStream(new FileInputStream(job.getFile()));
+                 OutputStream output = new BufferedOutputStream(new FileOutputStream(encryptedFile))) {
+                encrypted = encryptor.encrypt(input, output, job.getAlgorithm());
+            } catch (IOException exception) {
+                CustomLogger.log(Level.WARNING, "An I/O error occurred, unable to encrypt " + job.getFile(), exception);
+            }
+        }
+
+        if (!encrypted) {
+            /* A failed encryption can leave the digest of the signer half computed */
+            signerInfoGenerator.remove();
+            encryptedFile.delete();
+            for (User recipient : recipients) {
+                results.add(new Result(job, recipient, Status.FAILED, getEncryptedFile(recipient, fileName)));
+            }
+            return;
+        }
+
+        results.add(new Result(job, recipients.get(0), Status.ENCRYPTED, encryptedFile));
+        for (User recipient : recipients.subList(1, recipients.size())) {
+            File copy = getEncryptedFile(recipient, fileName);
+            try {
+                java.nio.file.Files.copy(encryptedFile.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                results.add(new Result(job, recipient, Status.ENCRYPTED, copy));
+            } catch (IOException exception) {
+                CustomLogger.log(Level.WARNING, "An I/O error occurred, unable to store encrypted file for " + recipient, exception);
+                results.add(new Result(job, recipient, Status.FAILED, copy));
+            }
+        }
+    }
+
+    /**
+     * Gets the signer of the current worker, building it on the first job the worker runs
+     *
+     * @return signer information generator of the sender, or null if unable to build it
+     */
+    private SignerInfoGenerator getSignerInfoGenerator() {
+        SignerInfoGenerator signer = signerInfoGenerator.get();
+        if (signer == null) {
+            try {
+                signer = Encryptor.buildSignerInfoGenerator(senderKeyPair, senderCertificate);
+                signerInfoGenerator.set(signer);
+            } catch (OperatorCreationException exception) {
+                CustomLogger.log(Level.WARNING, "Unable to create content signing object", exception);
+            } catch (CertificateEncodingException exception) {
+                CustomLogger.log(Level.WARNING, "Unable to encode the certificate of the sender", exception);
+            }
+        }
+        return signer;
+    }
+
+    /**
+     * Gets the location of the encrypted file in the directory of the recipient
+     *
+     * @param recipient user the file is sent to
+     * @param fileName  name of the encrypted file
+     * @return location of the encrypted file
+     */
+    private File getEncryptedFile(User recipient, String fileName) {
+        return new File(Files.getUserDir(recipient.getUsername()) + File.separator + fileName);
+    }
+
+    /**
+     * Reads the certificate of the recipient, every certificate is read only once per batch encryptor
+     *
+     * @param recipient user the file is sent to
+     * @return certificate of the recipient, or null if unable to read it
+     */
+    private X509Certificate getRecipientCertificate(User recipient) {
+        X509Certificate certificate = recipientCertificates.get(recipient.getUsername());
+        if (certificate != null) {
+            return certificate;
+        }
+
+        try {
+            certificate = CredentialsManager.getUserCertificate(Files.getUserCertificateLocation(recipient.getUsername()));
+            recipientCertificates.put(recipient.getUsername(), certificate);
+            return certificate;
+        } catch (IOException exception) {
+            CustomLogger.log(Level.WARNING, "An I/O error occurred, unable to read certificate from file", exception);
+        } catch (CertificateException exception) {
+            CustomLogger.log(Level.WARNING, "Unable to read certificate from file", exception);
+        }
+        return null;
+    }
+
+}
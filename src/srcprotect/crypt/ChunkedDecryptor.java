@@ -0,0 +1,317 @@
+package srcprotect.crypt;
+
+import srcprotect.utils.logging.CustomLogger;
+
+import javax.crypto.Cipher;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.LongConsumer;
+import java.util.logging.Level;
+
+import static srcprotect.crypt.ChunkedEncryptor.*;
+
+/**
+ * Decrypts files in the chunked container format created by {@link ChunkedEncryptor}. The manifest is decrypted and
+ * its signature verified when the container is opened, after which any chunk can be decrypted on its own
+ */
+public class ChunkedDecryptor implements Closeable {
+
+    private Decryptor manifestDecryptor;
+
+    private FileChannel container;
+    private byte[] key;
+    private int chunkSize;
+    private long plaintextLength;
+    private int chunkCount;
+    private byte[][] tags;
+
+    public ChunkedDecryptor(KeyPair recipientKeyPair, X509Certificate recipientCertificate, X509Certificate senderCertificate) {
+        manifestDecryptor = new Decryptor(recipientKeyPair, recipientCertificate, senderCertificate);
+    }
+
+    /**
+     * Checks whether the file is in the chunked container format
+     *
+     * @param file location of the encrypted file
+     * @return true if the file starts with the magic of the chunked container, false otherwise
+     */
+    public static boolean isChunkedContainer(File file) {
+        byte[] magic = new byte[MAGIC.length];
+        try (DataInputStream input = new DataInputStream(new FileInputStream(file))) {
+            input.readFully(magic);
+            return Arrays.equals(magic, MAGIC);
+        } catch (IOException exception) {
+            return false;
+        }
+    }
+
+    /**
+     * Opens the container, decrypts the manifest and verifies the signature of the sender
+     *
+     * @param file location of the container
+     * @return true if the manifest was decrypted and verified, false if any error occurs
+     */
+    public boolean open(File file) {
+        byte[] manifest = null;
+        try {
+            container = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+            ByteBuffer trailer = ByteBuffer.allocate(Long.BYTES + MAGIC.length);
+            if (container.size() < MAGIC.length + trailer.capacity()) {
+                throw new IOException("Encrypted file is too short to be a container");
+            }
+            readFully(trailer, container.size() - trailer.capacity());
+            long manifestLength = trailer.getLong();
+            byte[] magic = new byte[MAGIC.length];
+            trailer.get(magic);
+            if (!Arrays.equals(magic, MAGIC)
+                    || manifestLength <= 0 || manifestLength > container.size() - MAGIC.length - trailer.capacity()) {
+                throw new IOException("Container trailer is corrupt");
+            }
+
+            ByteBuffer envelopedManifest = ByteBuffer.allocate((int) manifestLength);
+            long manifestPosition = container.size() - trailer.capacity() - manifestLength;
+            readFully(envelopedManifest, manifestPosition);
+
+            manifest = manifestDecryptor.decrypt(envelopedManifest.array());
+            if (manifest == null) {
+                close();
+                return false;
+            }
+
+            DataInputStream manifestInput = new DataInputStream(new ByteArrayInputStream(manifest));
+            if (manifestInput.readInt() != MANIFEST_VERSION) {
+                throw new IOException("Unsupported container version");
+            }
+            key = new byte[KEY_LENGTH];
+            manifestInput.readFully(key);
+            chunkSize = manifestInput.readInt();
+            plaintextLength = manifestInput.readLong();
+            chunkCount = manifestInput.readInt();
+            tags = new byte[chunkCount][TAG_LENGTH];
+            for (byte[] tag : tags) {
+                manifestInput.readFully(tag);
+            }
+
+            /* Chunks must fill exactly the space between the magic and the manifest */
+            if (chunkSize <= 0
+                    || chunkCount != (plaintextLength + chunkSize - 1) / chunkSize
+                    || MAGIC.length + plaintextLength + (long) chunkCount * TAG_LENGTH != manifestPosition) {
+                throw new IOException("Container manifest does not match its content");
+            }
+            return true;
+        } catch (IOException exception) {
+            CustomLogger.log(Level.WARNING, "Encrypted file content might be corrupt", exception);
+            close();
+            return false;
+        } finally {
+            if (manifest != null) {
+                Arrays.fill(manifest, (byte) 0);
+            }
+        }
+    }
+
+    /**
+     * Decrypts a single chunk of the container
+     *
+     * @param index index of the chunk
+     * @return plaintext of the chunk
+     * @throws IOException              if an I/O error occurs or the chunk does not match the signed manifest
+     * @throws GeneralSecurityException if unable to decrypt or authenticate the chunk
+     */
+    public byte[] decryptChunk(int index) throws IOException, GeneralSecurityException {
+        if (index < 0 || index >= chunkCount) {
+            throw new IndexOutOfBoundsException("Chunk " + index + " does not exist");
+        }
+
+        int length = (int) Math.min(chunkSize, plaintextLength - (long) index * chunkSize);
+        ByteBuffer ciphertext = ByteBuffer.allocate(length + TAG_LENGTH);
+        readFully(ciphertext, getChunkPosition(index, chunkSize));
+
+        /* The tag binds the chunk to the manifest signed by the sender, the cipher only proves knowledge of the key */
+        byte[] tag = Arrays.copyOfRange(ciphertext.array(), length, length + TAG_LENGTH);
+        if (!MessageDigest.isEqual(tag, tags[index])) {
+            throw new IOException("Chunk " + index + " was not signed by the sender");
+        }
+
+        Cipher cipher = initChunkCipher(Cipher.DECRYPT_MODE, key, index, index == chunkCount - 1);
+        return cipher.doFinal(ciphertext.array());
+    }
+
+    /**
+     * Decrypts all of the chunks in parallel and writes them to the output stream in order. At most one chunk per worker
+     * is held in memory at a time
+     *
+     * @param output destination of the original plaintext data
+     * @return true if every chunk was decrypted and authenticated, false if any error occurs
+     */
+    public boolean decrypt(OutputStream output) {
+        return decrypt(output, bytes -> {
+        });
+    }
+
+    /**
+     * Decrypts all of the chunks in parallel and writes them to the output stream in order, reporting every chunk once
+     * it is written. Interrupting the thread cancels the decryption once the chunks in progress have finished
+     *
+     * @param output   destination of the original plaintext data
+     * @param progress receives the number of plaintext bytes written at every step
+     * @return true if every chunk was decrypted and authenticated, false if any error occurs
+     */
+    public boolean decrypt(OutputStream output, LongConsumer progress) {
+        int windowSize = Runtime.getRuntime().availableProcessors();
+
+        List<Future<byte[]>> window = new ArrayList<>(windowSize);
+        try {
+            for (int start = 0; start < chunkCount; start += windowSize) {
+                window.clear();
+                for (int index = start; index < Math.min(start + windowSize, chunkCount); ++index) {
+                    int chunkIndex = index;
+                    window.add(WORKERS.submit(() -> decryptChunk(chunkIndex)));
+                }
+                for (Future<byte[]> chunk : window) {
+                    byte[] plaintext = chunk.get();
+                    output.write(plaintext);
+                    progress.accept(plaintext.length);
+                }
+            }
+            return true;
+        } catch (IOException exception) {
+            CustomLogger.log(Level.WARNING, "An I/O error occurred while writing decrypted data", exception);
+        } catch (ExecutionException exception) {
+            CustomLogger.log(Level.WARNING, "Unable to decrypt a chunk of data", exception.getCause());
+        } catch (InterruptedException exception) {
+            CustomLogger.log(Level.WARNING, "Interrupted while decrypting data", exception);
+            Thread.currentThread().interrupt();
+        } finally {
+            /* The chunks in progress must finish before the caller closes the container and wipes the key */
+            for (byte[] plaintext : awaitChunks(window)) {
+                Arrays.fill(plaintext, (byte) 0);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Decrypts the whole container into the destination file. The plaintext is written to a temporary file next to the
+     * destination, which is moved into place only if every chunk is authentic and deleted otherwise
+     *
+     * @param destination location of the decrypted file
+     * @return true if the container was decrypted and authenticated, false if any error occurs
+     */
+    public boolean decrypt(File destination) {
+        return decrypt(destination, bytes -> {
+        });
+    }
+
+    /**
+     * Decrypts the whole container into the destination file, reporting every chunk once it is written. Interrupting
+     * the thread cancels the decryption, leaving the destination untouched
+     *
+     * @param destination location of the decrypted file
+     * @param progress    receives the number of plaintext bytes written at every step
+     * @return true if the container was decrypted and authenticated, false if any error occurs
+     */
+    public boolean decrypt(File destination, LongConsumer progress) {
+        File partialFile = new File(destination + ".partial");
+
+        boolean verified = false;
+        try {
+            try (OutputStream output = new BufferedOutputStream(new FileOutputStream(partialFile))) {
+                verified = decrypt(output, progress);
+            }
+
+            if (verified) {
+                Files.move(partialFile.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException exception) {
+            CustomLogger.log(Level.WARNING, "An I/O error occurred while storing decrypted data", exception);
+            verified = false;
+        } finally {
+            if (!verified) {
+                try {
+                    Files.deleteIfExists(partialFile.toPath());
+                } catch (IOException exception) {
+                    CustomLogger.log(Level.WARNING, "Unable to discard unverified decrypted data", exception);
+                }
+            }
+        }
+        return verified;
+    }
+
+    /**
+     * Getter for the chunk count
+     *
+     * @return number of chunks in the container
+     */
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * Getter for the chunk size
+     *
+     * @return size of the plaintext chunks, the last chunk might be smaller
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Getter for the plaintext length
+     *
+     * @return size of the original file
+     */
+    public long getPlaintextLength() {
+        return plaintextLength;
+    }
+
+    /**
+     * Wipes the content key and closes the container
+     */
+    @Override
+    public void close() {
+        if (key != null) {
+            Arrays.fill(key, (byte) 0);
+            key = null;
+        }
+        if (container != null) {
+            try {
+                container.close();
+            } catch (IOException exception) {
+                CustomLogger.log(Level.WARNING, "Unable to close encrypted file", exception);
+            }
+            container = null;
+        }
+    }
+
+    /**
+     * Fills the buffer from the container starting at the specified position, then prepares it for reading
+     *
+     * @param buffer   destination buffer
+     * @param position offset from the beginning of the container
+     * @throws IOException if an I/O error occurs or the container ends too soon
+     */
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (container.read(buffer, position + buffer.position()) == -1) {
+                throw new EOFException("Encrypted file was truncated");
+            }
+        }
+        buffer.flip();
+    }
+
+}
@@ -0,0 +1,269 @@
+package srcprotect.crypt;
+
+import org.bouncycastle.cms.CMSAlgorithm;
+import srcprotect.utils.logging.CustomLogger;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongConsumer;
+import java.util.logging.Level;
+
+/**
+ * Encrypts files into the chunked container format. The content is split into fixed-size chunks which are encrypted
+ * with AES-GCM in parallel, each with its own authentication tag. The content key, the chunk size and the tags of all
+ * the chunks form the manifest, which is signed by the sender and enveloped for the recipients the same way
+ * {@link Encryptor} protects whole files
+ * <p>
+ * Layout of the container: magic, encrypted chunks, enveloped manifest, length of the manifest, magic
+ */
+public class ChunkedEncryptor {
+
+    static final byte[] MAGIC = "SRCPCHNK".getBytes();
+    static final int MANIFEST_VERSION = 1;
+
+    static final String CHUNK_CIPHER = "AES/GCM/NoPadding";
+    static final int KEY_LENGTH = 32;
+    static final int NONCE_LENGTH = 12;
+    static final int TAG_LENGTH = 16;
+
+    static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    /* Shared by all chunked encryptors and decryptors, chunk operations are CPU bound */
+    static final ExecutorService WORKERS = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(),
+            runnable -> {
+                Thread worker = new Thread(runnable, "chunk-cipher");
+                worker.setDaemon(true);
+                return worker;
+            }
+    );
+
+    private KeyPair senderKeyPair;
+    private X509Certificate senderCert;
+    private List<X509Certificate> recipientCerts;
+    private int chunkSize;
+
+    public ChunkedEncryptor(KeyPair senderKeyPair, X509Certificate senderCert, Collection<X509Certificate> recipientCerts) {
+        this(senderKeyPair, senderCert, recipientCerts, DEFAULT_CHUNK_SIZE);
+    }
+
+    public ChunkedEncryptor(KeyPair senderKeyPair, X509Certificate senderCert, Collection<X509Certificate> recipientCerts, int chunkSize) {
+        this.senderKeyPair = senderKeyPair;
+        this.senderCert = senderCert;
+        this.recipientCerts = new ArrayList<>(recipientCerts);
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Encrypts the file into the chunked container, chunks are encrypted in parallel
+     *
+     * @param input  location of the plaintext file
+     * @param output location of the container
+     * @return true if the file was encrypted successfully, false if any error occurs
+     */
+    public boolean encrypt(File input, File output) {
+        return encrypt(input, output, bytes -> {
+        });
+    }
+
+    /**
+     * Encrypts the file into the chunked container, reporting every chunk once it is written. The chunks are encrypted
+     * in parallel, so the progress is reported from the worker threads. Interrupting the thread cancels the encryption
+     *
+     * @param input    location of the plaintext file
+     * @param output   location of the container
+     * @param progress receives the number of plaintext bytes encrypted at every step, must be thread-safe
+     * @return true if the file was encrypted successfully, false if any error occurs
+     */
+    public boolean encrypt(File input, File output, LongConsumer progress) {
+        byte[] key = new byte[KEY_LENGTH];
+        new SecureRandom().nextBytes(key);
+
+        List<Future<byte[]>> tags = new ArrayList<>();
+        AtomicBoolean aborted = new AtomicBoolean();
+        try (FileChannel source = FileChannel.open(input.toPath(), StandardOpenOption.READ);
+             FileChannel destination = FileChannel.open(output.toPath(),
+                     StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long plaintextLength = source.size();
+            int chunkCount = (int) ((plaintextLength + chunkSize - 1) / chunkSize);
+
+            writeFully(destination, ByteBuffer.wrap(MAGIC), 0);
+
+            for (int index = 0; index < chunkCount; ++index) {
+                int chunkIndex = index;
+                tags.add(WORKERS.submit(() -> aborted.get()
+                        ? null
+                        : encryptChunk(source, destination, key, chunkIndex, chunkCount, progress)));
+            }
+
+            ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+            DataOutputStream manifestOutput = new DataOutputStream(manifest);
+            manifestOutput.writeInt(MANIFEST_VERSION);
+            manifestOutput.write(key);
+            manifestOutput.writeInt(chunkSize);
+            manifestOutput.writeLong(plaintextLength);
+            manifestOutput.writeInt(chunkCount);
+            for (Future<byte[]> tag : tags) {
+                manifestOutput.write(tag.get());
+            }
+            manifestOutput.flush();
+
+            byte[] manifestBytes = manifest.toByteArray();
+            Encryptor manifestEncryptor = new Encryptor(senderKeyPair, senderCert, recipientCerts);
+            byte[] envelopedManifest = manifestEncryptor.encrypt(manifestBytes, CMSAlgorithm.AES256_CBC);
+            Arrays.fill(manifestBytes, (byte) 0);
+            if (envelopedManifest == null) {
+                return false;
+            }
+
+            long position = MAGIC.length + plaintextLength + (long) chunkCount * TAG_LENGTH;
+            ByteBuffer trailer = ByteBuffer.allocate(envelopedManifest.length + Long.BYTES + MAGIC.length);
+            trailer.put(envelopedManifest).putLong(envelopedManifest.length).put(MAGIC);
+            trailer.flip();
+            writeFully(destination, trailer, position);
+            return true;
+        } catch (IOException exception) {
+            CustomLogger.log(Level.WARNING, "An I/O error occurred, unable to encrypt data", exception);
+        } catch (ExecutionException exception) {
+            CustomLogger.log(Level.WARNING, "Unable to encrypt a chunk of data", exception.getCause());
+        } catch (InterruptedException exception) {
+            CustomLogger.log(Level.WARNING, "Interrupted while encrypting data", exception);
+            Thread.currentThread().interrupt();
+        } finally {
+            /* Chunks that have not started yet are skipped, the ones in progress finish before the key is wiped and
+               the channels are closed */
+            aborted.set(true);
+            awaitChunks(tags);
+            Arrays.fill(key, (byte) 0);
+        }
+        return false;
+    }
+
+    /**
+     * Reads a single chunk of the plaintext file, encrypts it and writes it to its place in the container
+     *
+     * @param source      plaintext file
+     * @param destination container
+     * @param key         content key
+     * @param index       index of the chunk
+     * @param chunkCount  total number of chunks
+     * @param progress    receives the length of the chunk once it is written
+     * @return authentication tag of the chunk
+     * @throws IOException              if an I/O error occurs
+     * @throws GeneralSecurityException if unable to encrypt the chunk
+     */
+    private byte[] encryptChunk(FileChannel source, FileChannel destination, byte[] key, int index, int chunkCount,
+                                LongConsumer progress) throws IOException, GeneralSecurityException {
+        long offset = (long) index * chunkSize;
+        int length = (int) Math.min(chunkSize, source.size() - offset);
+
+        ByteBuffer plaintext = ByteBuffer.allocate(length);
+        while (plaintext.hasRemaining()) {
+            if (source.read(plaintext, offset + plaintext.position()) == -1) {
+                throw new EOFException("File was truncated while being encrypted");
+            }
+        }
+
+        Cipher cipher = initChunkCipher(Cipher.ENCRYPT_MODE, key, index, index == chunkCount - 1);
+        byte[] ciphertext = cipher.doFinal(plaintext.array());
+        writeFully(destination, ByteBuffer.wrap(ciphertext), getChunkPosition(index, chunkSize));
+        progress.accept(length);
+
+        return Arrays.copyOfRange(ciphertext, ciphertext.length - TAG_LENGTH, ciphertext.length);
+    }
+
+    /**
+     * Creates a cipher for a single chunk. The nonce is derived from the index of the chunk, which is safe because every
+     * container has its own random key, and the index along with the final chunk flag is authenticated so that chunks
+     * cannot be reordered or dropped
+     *
+     * @param mode       encryption or decryption mode
+     * @param key        content key
+     * @param index      index of the chunk
+     * @param finalChunk flag that indicates whether this is the last chunk of the container
+     * @return initialized cipher
+     * @throws GeneralSecurityException if the cipher is not available
+     */
+    static Cipher initChunkCipher(int mode, byte[] key, int index, boolean finalChunk) throws GeneralSecurityException {
+        byte[] nonce = ByteBuffer.allocate(NONCE_LENGTH).putInt(0).putLong(index).array();
+        byte[] associatedData = ByteBuffer.allocate(Long.BYTES + 1).putLong(index).put((byte) (finalChunk ? 1 : 0)).array();
+
+        Cipher cipher = Cipher.getInstance(CHUNK_CIPHER, "BC");
+        cipher.init(mode, new SecretKeySpec(key, "AES"), new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+        cipher.updateAAD(associatedData);
+        return cipher;
+    }
+
+    /**
+     * Gets the position of the encrypted chunk in the container
+     *
+     * @param index     index of the chunk
+     * @param chunkSize size of the plaintext chunks
+     * @return offset of the chunk from the beginning of the container
+     */
+    static long getChunkPosition(int index, int chunkSize) {
+        return MAGIC.length + (long) index * (chunkSize + TAG_LENGTH);
+    }
+
+    /**
+     * Waits for every chunk to finish without reacting to interrupts. The chunks are never interrupted, as positional
+     * I/O on an interrupted thread closes the channel for every other chunk sharing it
+     *
+     * @param chunks pending chunks
+     * @param <T>    type of the result of a chunk
+     * @return results of the chunks that completed, the failed and skipped ones are left out
+     */
+    static <T> List<T> awaitChunks(List<Future<T>> chunks) {
+        List<T> results = new ArrayList<>();
+        boolean interrupted = false;
+        for (Future<T> chunk : chunks) {
+            while (true) {
+                try {
+                    T result = chunk.get();
+                    if (result != null) {
+                        results.add(result);
+                    }
+                    break;
+                } catch (InterruptedException exception) {
+                    interrupted = true;
+                } catch (ExecutionException | CancellationException exception) {
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return results;
+    }
+
+    /**
+     * Writes the whole buffer to the channel at the specified position
+     *
+     * @param channel  destination channel
+     * @param buffer   data to be written
+     * @param position offset from the beginning of the channel
+     * @throws IOException if an I/O error occurs
+     */
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+}
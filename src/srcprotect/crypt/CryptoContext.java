@@ -0,0 +1,204 @@
+package srcprotect.crypt;
+
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CRLConverter;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cms.SignerInformationVerifier;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.ContentVerifierProvider;
+import org.bouncycastle.operator.DigestCalculatorProvider;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentVerifierProviderBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import srcprotect.utils.Algorithms;
+
+import java.security.*;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Single place where the security provider is registered and the objects used by every cryptographic operation are
+ * created. Constructing the provider is expensive, so it is constructed only once. Objects that are safe to share
+ * are created once as well, the ones that keep state between calls are reused per thread
+ */
+public class CryptoContext {
+
+    private static final Provider PROVIDER = registerProvider();
+
+    private static final ThreadLocal<CertificateFactory> CERTIFICATE_FACTORY = ThreadLocal.withInitial(() -> {
+        try {
+            return CertificateFactory.getInstance("X.509", PROVIDER);
+        } catch (CertificateException exception) {
+            throw new IllegalStateException("X.509 certificates are not supported by the provider", exception);
+        }
+    });
+    private static final ThreadLocal<Map<String, MessageDigest>> MESSAGE_DIGESTS = ThreadLocal.withInitial(HashMap::new);
+
+    private static final Map<String, JcaContentSignerBuilder> SIGNER_BUILDERS = new ConcurrentHashMap<>();
+    private static final DigestCalculatorProvider DIGEST_CALCULATOR_PROVIDER = buildDigestCalculatorProvider();
+    private static final JcaContentVerifierProviderBuilder VERIFIER_PROVIDER_BUILDER =
+            new JcaContentVerifierProviderBuilder().setProvider(PROVIDER);
+    private static final JcaSimpleSignerInfoVerifierBuilder SIGNER_INFO_VERIFIER_BUILDER =
+            new JcaSimpleSignerInfoVerifierBuilder().setProvider(PROVIDER);
+
+    private static final JcaX509CertificateConverter CERTIFICATE_CONVERTER = new JcaX509CertificateConverter().setProvider(PROVIDER);
+    private static final JcaX509CRLConverter CRL_CONVERTER = new JcaX509CRLConverter().setProvider(PROVIDER);
+    private static final JcaPEMKeyConverter KEY_CONVERTER = new JcaPEMKeyConverter().setProvider(PROVIDER);
+
+    /**
+     * Registers the BouncyCastle provider, unless it is already registered
+     *
+     * @return registered provider
+     */
+    private static synchronized Provider registerProvider() {
+        Provider provider = Security.getProvider(BouncyCastleProvider.PROVIDER_NAME);
+        if (provider == null) {
+            provider = new BouncyCastleProvider();
+            Security.addProvider(provider);
+        }
+        return provider;
+    }
+
+    /**
+     * Builds the digest calculator provider, it creates a new digest for every calculation and can be shared
+     *
+     * @return digest calculator provider
+     */
+    private static DigestCalculatorProvider buildDigestCalculatorProvider() {
+        try {
+            return new JcaDigestCalculatorProviderBuilder().setProvider(PROVIDER).build();
+        } catch (OperatorCreationException exception) {
+            throw new IllegalStateException("Unable to create digest calculator provider", exception);
+        }
+    }
+
+    /**
+     * Makes sure the provider is registered, so that it can be referred to by its name
+     */
+    public static void initialize() {
+        if (Security.getProvider(PROVIDER.getName()) == null) {
+            Security.addProvider(PROVIDER);
+        }
+    }
+
+    /**
+     * Getter for the provider
+     *
+     * @return the only instance of the BouncyCastle provider
+     */
+    public static Provider getProvider() {
+        return PROVIDER;
+    }
+
+    /**
+     * Gets the certificate factory of the calling thread
+     *
+     * @return X.509 certificate factory, must not be passed to other threads
+     */
+    public static CertificateFactory getCertificateFactory() {
+        return CERTIFICATE_FACTORY.get();
+    }
+
+    /**
+     * Gets the message digest of the calling thread for the algorithm, reset and ready to use
+     *
+     * @param algorithm name of the digest algorithm
+     * @return message digest, must not be passed to other threads
+     * @throws NoSuchAlgorithmException if the algorithm is not supported
+     */
+    public static MessageDigest getMessageDigest(String algorithm) throws NoSuchAlgorithmException {
+        Map<String, MessageDigest> digests = MESSAGE_DIGESTS.get();
+        MessageDigest digest = digests.get(algorithm);
+        if (digest == null) {
+            digest = MessageDigest.getInstance(algorithm, PROVIDER);
+            digests.put(algorithm, digest);
+        } else {
+            digest.reset();
+        }
+        return digest;
+    }
+
+    /**
+     * Getter for the digest calculator provider
+     *
+     * @return digest calculator provider shared by all of the threads
+     */
+    public static DigestCalculatorProvider getDigestCalculatorProvider() {
+        return DIGEST_CALCULATOR_PROVIDER;
+    }
+
+    /**
+     * Builds an object for signing with the key, using the signature algorithm that matches the type of the key.
+     * The builder of every algorithm is created only once
+     *
+     * @param privateKey signing key
+     * @return content signer, must not be used by more than one thread at a time
+     * @throws OperatorCreationException if unable to create the signer
+     */
+    public static ContentSigner buildContentSigner(PrivateKey privateKey) throws OperatorCreationException {
+        JcaContentSignerBuilder builder = SIGNER_BUILDERS.computeIfAbsent(
+                Algorithms.getSignatureAlgorithm(privateKey),
+                algorithm -> new JcaContentSignerBuilder(algorithm).setProvider(PROVIDER)
+        );
+        return builder.build(privateKey);
+    }
+
+    /**
+     * Builds an object for verifying signatures made with the private key that matches the public key
+     *
+     * @param publicKey verification key
+     * @return content verifier provider
+     * @throws OperatorCreationException if unable to create the verifier provider
+     */
+    public static ContentVerifierProvider buildContentVerifierProvider(PublicKey publicKey) throws OperatorCreationException {
+        return VERIFIER_PROVIDER_BUILDER.build(publicKey);
+    }
+
+    /**
+     * Builds an object for verifying the signer information of signed data
+     *
+     * @param certHolder certificate of the signer
+     * @return signer information verifier
+     * @throws OperatorCreationException if unable to create the verifier
+     * @throws CertificateException      if unable to read the certificate of the signer
+     */
+    public static SignerInformationVerifier buildSignerInfoVerifier(X509CertificateHolder certHolder)
+            throws OperatorCreationException, CertificateException {
+        return SIGNER_INFO_VERIFIER_BUILDER.build(certHolder);
+    }
+
+    /**
+     * Getter for the certificate converter
+     *
+     * @return converter of certificate holders to certificates
+     */
+    public static JcaX509CertificateConverter getCertificateConverter() {
+        return CERTIFICATE_CONVERTER;
+    }
+
+    /**
+     * Getter for the CRL converter
+     *
+     * @return converter of CRL holders to CRLs
+     */
+    public static JcaX509CRLConverter getCRLConverter() {
+        return CRL_CONVERTER;
+    }
+
+    /**
+     * Getter for the key converter
+     *
+     * @return converter of parsed PEM keys to key pairs
+     */
+    public static JcaPEMKeyConverter getKeyConverter() {
+        return KEY_CONVERTER;
+    }
+
+}
@@ -3,18 +3,21 @@ package srcprotect.crypt;
 import org.bouncycastle.asn1.ASN1InputStream;
 import org.bouncycastle.asn1.cms.ContentInfo;
 import org.bouncycastle.cert.X509CertificateHolder;
-import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
 import org.bouncycastle.cms.*;
 import org.bouncycastle.cms.jcajce.*;
 import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.util.Store;
+import srcprotect.utils.Algorithms;
 import srcprotect.utils.logging.CustomLogger;
 
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.security.KeyPair;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.Collection;
+import java.util.function.LongConsumer;
 import java.util.logging.Level;
 
 /**
@@ -23,11 +26,26 @@ import java.util.logging.Level;
 @SuppressWarnings({"ConstantConditions", "unchecked"})
 public class Decryptor {
 
+    private static final int BUFFER_SIZE = 64 * 1024;
+
     private KeyPair recipientKeyPair;
-    private X509Certificate senderCertificate;
+    private X509Certificate recipientCertificate, senderCertificate;
 
     public Decryptor(KeyPair recipientKeyPair, X509Certificate senderCertificate) {
+        this(recipientKeyPair, null, senderCertificate);
+    }
+
+    /**
+     * Creates a decryptor that picks the recipient information matching the certificate of the recipient,
+     * which enables decrypting files sent to multiple recipients
+     *
+     * @param recipientKeyPair     key pair of the recipient
+     * @param recipientCertificate certificate of the recipient, if null the first recipient information is used
+     * @param senderCertificate    certificate of the sender
+     */
+    public Decryptor(KeyPair recipientKeyPair, X509Certificate recipientCertificate, X509Certificate senderCertificate) {
         this.recipientKeyPair = recipientKeyPair;
+        this.recipientCertificate = recipientCertificate;
         this.senderCertificate = senderCertificate;
     }
 
@@ -47,6 +65,112 @@ public class Decryptor {
         return null;
     }
 
+    /**
+     * Decrypts the enveloped data read from the input stream and writes the original plaintext data to the output stream
+     * as it arrives. The signature can only be verified once the whole content has been read, so the output must not be
+     * trusted unless this method returns true
+     *
+     * @param input  source of the encrypted data
+     * @param output destination of the original plaintext data
+     * @return true if the data was decrypted and the signature of the sender verified, false if any error occurs
+     */
+    public boolean decrypt(InputStream input, OutputStream output) {
+        CMSEnvelopedDataParser envelopedDataParser = null;
+        try {
+            envelopedDataParser = new CMSEnvelopedDataParser(input);
+
+            RecipientInformation recipientInfo = findRecipient(envelopedDataParser.getRecipientInfos());
+            if (recipientInfo == null) {
+                return false;
+            }
+            CMSTypedStream envelopedContent = recipientInfo.getContentStream(createRecipient(recipientInfo));
+
+            CMSSignedDataParser signedDataParser = new CMSSignedDataParser(
+                    CryptoContext.getDigestCalculatorProvider(),
+                    envelopedContent.getContentStream()
+            );
+
+            /* Digests are calculated while the content is being copied, so the content has to be read completely first */
+            InputStream signedContent = signedDataParser.getSignedContent().getContentStream();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = signedContent.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+
+            SignerInformation signerInfo = signedDataParser.getSignerInfos().getSigners().iterator().next();
+            return verifySigner(signerInfo, signedDataParser.getCertificates());
+        } catch (CMSException exception) {
+            CustomLogger.log(Level.WARNING, "Encrypted file content might be corrupt", exception);
+        } catch (IOException exception) {
+            CustomLogger.log(Level.WARNING, "An I/O error occurred while reading encrypted data", exception);
+        } catch (OperatorCreationException exception) {
+            CustomLogger.log(Level.WARNING, "Operator creation failed", exception);
+        } catch (CertificateException exception) {
+            CustomLogger.log(Level.WARNING, "Unable to read certificate", exception);
+        } finally {
+            if (envelopedDataParser != null) {
+                try {
+                    envelopedDataParser.close();
+                } catch (IOException exception) {
+                    CustomLogger.log(Level.WARNING, "Unable to close encrypted data parser", exception);
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Decrypts the encrypted file into the destination file. The plaintext is written to a temporary file next to the
+     * destination, which is moved into place only if the signature is valid and deleted otherwise
+     *
+     * @param encryptedFile location of the encrypted file
+     * @param destination   location of the decrypted file
+     * @return true if the file was decrypted and the signature of the sender verified, false if any error occurs
+     */
+    public boolean decrypt(File encryptedFile, File destination) {
+        return decrypt(encryptedFile, destination, bytes -> {
+        });
+    }
+
+    /**
+     * Decrypts the encrypted file into the destination file, reporting the bytes of the encrypted file as they are
+     * read. Interrupting the thread cancels the decryption, leaving the destination untouched
+     *
+     * @param encryptedFile location of the encrypted file
+     * @param destination   location of the decrypted file
+     * @param progress      receives the number of encrypted bytes read at every step
+     * @return true if the file was decrypted and the signature of the sender verified, false if any error occurs
+     */
+    public boolean decrypt(File encryptedFile, File destination, LongConsumer progress) {
+        File partialFile = new File(destination + ".partial");
+
+        boolean verified = false;
+        try {
+            try (InputStream input = new ProgressInputStream(
+                    new BufferedInputStream(new FileInputStream(encryptedFile)), progress);
+                 OutputStream output = new BufferedOutputStream(new FileOutputStream(partialFile))) {
+                verified = decrypt(input, output);
+            }
+
+            if (verified) {
+                Files.move(partialFile.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException exception) {
+            CustomLogger.log(Level.WARNING, "An I/O error occurred while storing decrypted data", exception);
+            verified = false;
+        } finally {
+            if (!verified) {
+                try {
+                    Files.deleteIfExists(partialFile.toPath());
+                } catch (IOException exception) {
+                    CustomLogger.log(Level.WARNING, "Unable to discard unverified decrypted data", exception);
+                }
+            }
+        }
+        return verified;
+    }
+
     /**
      * Decrypts the content of the encrypted file using the same key used to encrypt it, which is contained in the header
      *
@@ -62,12 +186,12 @@ public class Decryptor {
             return null;
         }
 
-        Collection<RecipientInformation> recipients = envelopedData.getRecipientInfos().getRecipients();
-        KeyTransRecipientInformation recipientInfo = (KeyTransRecipientInformation) recipients.iterator().next();
-        JceKeyTransRecipient recipient = new JceKeyTransEnvelopedRecipient(recipientKeyPair.getPrivate());
-
+        RecipientInformation recipientInfo = findRecipient(envelopedData.getRecipientInfos());
+        if (recipientInfo == null) {
+            return null;
+        }
         try {
-            return recipientInfo.getContent(recipient);
+            return recipientInfo.getContent(createRecipient(recipientInfo));
         } catch (CMSException exception) {
             CustomLogger.log(Level.WARNING, "Recipient information not valid", exception);
             return null;
@@ -75,6 +199,41 @@ public class Decryptor {
 
     }
 
+    /**
+     * Finds the recipient information meant for this recipient
+     *
+     * @param recipients information about all of the recipients of the enveloped data
+     * @return recipient information matching the certificate of the recipient, or null if there is none
+     */
+    private RecipientInformation findRecipient(RecipientInformationStore recipients) {
+        if (recipientCertificate == null) {
+            return recipients.getRecipients().iterator().next();
+        }
+
+        RecipientId recipientId = Algorithms.isECKey(recipientCertificate.getPublicKey())
+                ? new JceKeyAgreeRecipientId(recipientCertificate)
+                : new JceKeyTransRecipientId(recipientCertificate);
+
+        RecipientInformation recipientInfo = recipients.get(recipientId);
+        if (recipientInfo == null) {
+            CustomLogger.log(Level.WARNING, "File was not encrypted for the selected recipient", new Exception());
+        }
+        return recipientInfo;
+    }
+
+    /**
+     * Creates the recipient able to recover the symmetric key from the recipient information
+     *
+     * @param recipientInfo recipient information meant for this recipient
+     * @return key agreement recipient for EC keys, key transport recipient otherwise
+     */
+    private Recipient createRecipient(RecipientInformation recipientInfo) {
+        if (recipientInfo instanceof KeyAgreeRecipientInformation) {
+            return new JceKeyAgreeEnvelopedRecipient(recipientKeyPair.getPrivate()).setProvider("BC");
+        }
+        return new JceKeyTransEnvelopedRecipient(recipientKeyPair.getPrivate());
+    }
+
     /**
      * Verifies the signature and gets raw data of the original file
      *
@@ -89,17 +248,8 @@ public class Decryptor {
             CMSSignedData signedData = new CMSSignedData(ContentInfo.getInstance(asn1InputStream.readObject()));
 
             SignerInformation signerInfo = signedData.getSignerInfos().getSigners().iterator().next();
-            Collection<X509CertificateHolder> certs = signedData.getCertificates().getMatches(signerInfo.getSID());
-            X509CertificateHolder certHolder = certs.iterator().next();
-
-            /* If the specified sender is not the owner of the certificate contained in the file header, verification fails */
-            X509Certificate certificate = new JcaX509CertificateConverter().getCertificate(certHolder);
-            if (!extractCN(certificate.getSubjectDN().getName()).equals(extractCN(senderCertificate.getSubjectDN().getName()))) {
-                CustomLogger.log(Level.WARNING, "File was not signed by the selected sender", new Exception());
-                return null;
-            }
 
-            if (signerInfo.verify(new JcaSimpleSignerInfoVerifierBuilder().build(certHolder))) {
+            if (verifySigner(signerInfo, signedData.getCertificates())) {
                 return (byte[]) signedData.getSignedContent().getContent();
             }
         } catch (CMSException exception) {
@@ -114,6 +264,31 @@ public class Decryptor {
         return null;
     }
 
+    /**
+     * Checks that the signer is the selected sender and that the signature is valid
+     *
+     * @param signerInfo information about the signer, with the digest of the content already calculated
+     * @param certStore  certificates contained in the signed data
+     * @return true if the content was signed by the selected sender and the signature is valid, false otherwise
+     * @throws CMSException              if unable to verify the signature
+     * @throws OperatorCreationException if unable to create the verifier
+     * @throws CertificateException      if unable to read the certificate of the signer
+     */
+    private boolean verifySigner(SignerInformation signerInfo, Store<X509CertificateHolder> certStore)
+            throws CMSException, OperatorCreationException, CertificateException {
+        Collection<X509CertificateHolder> certs = certStore.getMatches(signerInfo.getSID());
+        X509CertificateHolder certHolder = certs.iterator().next();
+
+        /* If the specified sender is not the owner of the certificate contained in the file header, verification fails */
+        X509Certificate certificate = CryptoContext.getCertificateConverter().getCertificate(certHolder);
+        if (!extractCN(certificate.getSubjectDN().getName()).equals(extractCN(senderCertificate.getSubjectDN().getName()))) {
+            CustomLogger.log(Level.WARNING, "File was not signed by the selected sender", new Exception());
+            return false;
+        }
+
+        return signerInfo.verify(CryptoContext.buildSignerInfoVerifier(certHolder));
+    }
+
     /**
      * Extracts the common name from the subject's distinguished name
      *
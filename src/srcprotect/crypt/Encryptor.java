@@ -5,19 +5,27 @@ import org.bouncycastle.cert.X509CertificateHolder;
 import org.bouncycastle.cms.*;
 import org.bouncycastle.cms.jcajce.JcaSignerInfoGeneratorBuilder;
 import org.bouncycastle.cms.jcajce.JceCMSContentEncryptorBuilder;
+import org.bouncycastle.cms.jcajce.JceKeyAgreeRecipientInfoGenerator;
 import org.bouncycastle.cms.jcajce.JceKeyTransRecipientInfoGenerator;
 import org.bouncycastle.operator.ContentSigner;
 import org.bouncycastle.operator.OperatorCreationException;
 import org.bouncycastle.operator.OutputEncryptor;
-import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
-import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
 import srcprotect.utils.Algorithms;
 import srcprotect.utils.logging.CustomLogger;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
 import java.security.KeyPair;
+import java.security.KeyPairGenerator;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
+import java.security.interfaces.ECPublicKey;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.logging.Level;
 
 /**
@@ -25,13 +33,60 @@ import java.util.logging.Level;
  */
 public class Encryptor {
 
+    private static final int BUFFER_SIZE = 64 * 1024;
+
     private KeyPair senderKeyPair;
-    private X509Certificate senderCert, recipientCert;
+    private X509Certificate senderCert;
+    private List<X509Certificate> recipientCerts;
+    private SignerInfoGenerator signerInfoGenerator;
 
     public Encryptor(KeyPair senderKeyPair, X509Certificate senderCert, X509Certificate recipientCert) {
+        this(senderKeyPair, senderCert, Collections.singletonList(recipientCert));
+    }
+
+    /**
+     * Creates an encryptor whose output can be decrypted by any of the recipients. The content is signed and encrypted
+     * only once, the symmetric key is enveloped separately for every recipient
+     *
+     * @param senderKeyPair  key pair of the sender
+     * @param senderCert     certificate of the sender
+     * @param recipientCerts certificates of the recipients
+     */
+    public Encryptor(KeyPair senderKeyPair, X509Certificate senderCert, Collection<X509Certificate> recipientCerts) {
         this.senderKeyPair = senderKeyPair;
         this.senderCert = senderCert;
-        this.recipientCert = recipientCert;
+        this.recipientCerts = new ArrayList<>(recipientCerts);
+    }
+
+    /**
+     * Creates an encryptor that signs with an already built signer information generator instead of building one for
+     * every encryption. The generator keeps the state of the signature between calls, so it must not be used by more
+     * than one encryption at a time
+     *
+     * @param senderKeyPair       key pair of the sender
+     * @param senderCert          certificate of the sender
+     * @param recipientCerts      certificates of the recipients
+     * @param signerInfoGenerator generator of the signer information of the sender
+     */
+    Encryptor(KeyPair senderKeyPair, X509Certificate senderCert, Collection<X509Certificate> recipientCerts,
+              SignerInfoGenerator signerInfoGenerator) {
+        this(senderKeyPair, senderCert, recipientCerts);
+        this.signerInfoGenerator = signerInfoGenerator;
+    }
+
+    /**
+     * Creates the generator of the signer information of the sender, so that it can be reused for many encryptions
+     *
+     * @param senderKeyPair key pair of the sender
+     * @param senderCert    certificate of the sender
+     * @return signer information generator, must not be used by more than one thread at a time
+     * @throws OperatorCreationException    if unable to create content signing object
+     * @throws CertificateEncodingException if unable to encode the certificate of the sender
+     */
+    static SignerInfoGenerator buildSignerInfoGenerator(KeyPair senderKeyPair, X509Certificate senderCert)
+            throws OperatorCreationException, CertificateEncodingException {
+        ContentSigner signer = CryptoContext.buildContentSigner(senderKeyPair.getPrivate());
+        return new JcaSignerInfoGeneratorBuilder(CryptoContext.getDigestCalculatorProvider()).build(signer, senderCert);
     }
 
     /**
@@ -51,6 +106,50 @@ public class Encryptor {
         return encryptContent(signedContent, algorithm);
     }
 
+    /**
+     * Signs the content read from the input stream and writes the enveloped attached signature to the output stream
+     * while the content is being read, so that memory usage does not depend on the size of the content
+     *
+     * @param input     source of the raw data to be encrypted
+     * @param output    destination of the encrypted and signed data
+     * @param algorithm symmetric algorithm used to encrypt the data
+     * @return true if the data was encrypted successfully, false if any error occurs
+     */
+    public boolean encrypt(InputStream input, OutputStream output, ASN1ObjectIdentifier algorithm) {
+        CMSEnvelopedDataStreamGenerator envelopedDataGenerator = new CMSEnvelopedDataStreamGenerator();
+        CMSSignedDataStreamGenerator signedDataGenerator = new CMSSignedDataStreamGenerator();
+
+        try {
+            addRecipientInfoGenerators(envelopedDataGenerator);
+            OutputEncryptor encryptor = new JceCMSContentEncryptorBuilder(algorithm).setProvider("BC").build();
+
+            signedDataGenerator.addSignerInfoGenerator(buildSignerInfoGenerator());
+            signedDataGenerator.addCertificate(new X509CertificateHolder(senderCert.getEncoded()));
+
+            /* Signed data is generated straight into the enveloped data stream, the same layout the in-memory mode produces */
+            try (OutputStream envelopedOutput = envelopedDataGenerator.open(output, encryptor);
+                 OutputStream signedOutput = signedDataGenerator.open(envelopedOutput, true)) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = input.read(buffer)) != -1) {
+                    signedOutput.write(buffer, 0, read);
+                }
+            }
+            return true;
+        } catch (OperatorCreationException exception) {
+            CustomLogger.log(Level.WARNING, "Unable to create content signing object", exception);
+        } catch (CertificateEncodingException exception) {
+            CustomLogger.log(Level.WARNING, "Error occurred while adding info to the data generators", exception);
+        } catch (GeneralSecurityException exception) {
+            CustomLogger.log(Level.WARNING, "Unable to generate key agreement key for the recipient", exception);
+        } catch (CMSException exception) {
+            CustomLogger.log(Level.WARNING, "Unable to create encryptor object", exception);
+        } catch (IOException exception) {
+            CustomLogger.log(Level.WARNING, "An I/O error occurred, unable to encrypt data", exception);
+        }
+        return false;
+    }
+
     /**
      * Creates an attached digital signature of the content using the private key of the sender
      *
@@ -63,12 +162,7 @@ public class Encryptor {
         CMSSignedDataGenerator signedDataGenerator = new CMSSignedDataGenerator();
 
         try {
-            ContentSigner signer = new JcaContentSignerBuilder(Algorithms.DIGITAL_SIGNATURE_ALGORITHM).build(senderKeyPair.getPrivate());
-            signedDataGenerator.addSignerInfoGenerator(
-                    new JcaSignerInfoGeneratorBuilder(
-                            new JcaDigestCalculatorProviderBuilder().setProvider("BC").build()
-                    ).build(signer, senderCert)
-            );
+            signedDataGenerator.addSignerInfoGenerator(buildSignerInfoGenerator());
 
             signedDataGenerator.addCertificate(new X509CertificateHolder(senderCert.getEncoded()));
             CMSSignedData signedData = signedDataGenerator.generate(CMSData, true);
@@ -85,6 +179,61 @@ public class Encryptor {
         return null;
     }
 
+    /**
+     * Gets the generator of the signer information, the one given to the encryptor or a new one built from the private
+     * key and the certificate of the sender
+     *
+     * @return signer information generator
+     * @throws OperatorCreationException    if unable to create content signing object
+     * @throws CertificateEncodingException if unable to encode the certificate of the sender
+     */
+    private SignerInfoGenerator buildSignerInfoGenerator() throws OperatorCreationException, CertificateEncodingException {
+        if (signerInfoGenerator != null) {
+            return signerInfoGenerator;
+        }
+        return buildSignerInfoGenerator(senderKeyPair, senderCert);
+    }
+
+    /**
+     * Adds a recipient information generator for every recipient, each of them envelopes the same symmetric key.
+     * RSA recipients get the key encrypted with their public key, EC recipients get it wrapped with a key agreed
+     * between their public key and an ephemeral key pair
+     *
+     * @param envelopedDataGenerator generator of the enveloped data
+     * @throws CertificateEncodingException if unable to encode the certificate of a recipient
+     * @throws GeneralSecurityException     if unable to generate an ephemeral key pair for an EC recipient
+     */
+    private void addRecipientInfoGenerators(CMSEnvelopedGenerator envelopedDataGenerator) throws GeneralSecurityException {
+        for (X509Certificate recipientCert : recipientCerts) {
+            if (Algorithms.isECKey(recipientCert.getPublicKey())) {
+                KeyPair ephemeralKeyPair = generateEphemeralKeyPair((ECPublicKey) recipientCert.getPublicKey());
+                envelopedDataGenerator.addRecipientInfoGenerator(
+                        new JceKeyAgreeRecipientInfoGenerator(
+                                CMSAlgorithm.ECDH_SHA256KDF,
+                                ephemeralKeyPair.getPrivate(),
+                                ephemeralKeyPair.getPublic(),
+                                CMSAlgorithm.AES256_WRAP
+                        ).addRecipient(recipientCert).setProvider("BC")
+                );
+            } else {
+                envelopedDataGenerator.addRecipientInfoGenerator(new JceKeyTransRecipientInfoGenerator(recipientCert));
+            }
+        }
+    }
+
+    /**
+     * Generates a one-time key pair on the same curve as the recipient's key, used for the key agreement
+     *
+     * @param recipientKey public key of the recipient
+     * @return ephemeral EC key pair
+     * @throws GeneralSecurityException if the curve of the recipient's key is not supported
+     */
+    private static KeyPair generateEphemeralKeyPair(ECPublicKey recipientKey) throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance(Algorithms.EC_KEY_ALGORITHM);
+        generator.initialize(recipientKey.getParams());
+        return generator.generateKeyPair();
+    }
+
     /**
      * Encrypts the signed content with the specified symmetric algorithm
      *
@@ -96,8 +245,7 @@ public class Encryptor {
         CMSEnvelopedDataGenerator envelopedDataGenerator = new CMSEnvelopedDataGenerator();
 
         try {
-            JceKeyTransRecipientInfoGenerator recipientInfoGenerator = new JceKeyTransRecipientInfoGenerator(recipientCert);
-            envelopedDataGenerator.addRecipientInfoGenerator(recipientInfoGenerator);
+            addRecipientInfoGenerators(envelopedDataGenerator);
 
             CMSTypedData data = new CMSProcessableByteArray(content);
 
@@ -107,6 +255,8 @@ public class Encryptor {
             return envelopedData.getEncoded();
         } catch (CertificateEncodingException exception) {
             CustomLogger.log(Level.WARNING, "Error occurred while adding info to recipient data generator", exception);
+        } catch (GeneralSecurityException exception) {
+            CustomLogger.log(Level.WARNING, "Unable to generate key agreement key for the recipient", exception);
         } catch (CMSException exception) {
             CustomLogger.log(Level.WARNING, "Unable to create encryptor object", exception);
         } catch (IOException exception) {
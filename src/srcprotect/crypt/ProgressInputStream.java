@@ -0,0 +1,69 @@
+package srcprotect.crypt;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.function.LongConsumer;
+
+/**
+ * Reports every byte read through it, and stops reading once the reading thread is interrupted, so that a long
+ * operation over the stream can be followed and cancelled
+ */
+public class ProgressInputStream extends FilterInputStream {
+
+    private final LongConsumer progress;
+
+    /**
+     * Wraps the stream
+     *
+     * @param input    source of the data
+     * @param progress receives the number of bytes read by every call
+     */
+    public ProgressInputStream(InputStream input, LongConsumer progress) {
+        super(input);
+        this.progress = progress;
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkInterrupted();
+        int value = super.read();
+        if (value != -1) {
+            progress.accept(1);
+        }
+        return value;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        checkInterrupted();
+        int read = super.read(buffer, offset, length);
+        if (read > 0) {
+            progress.accept(read);
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+        checkInterrupted();
+        long skipped = super.skip(count);
+        if (skipped > 0) {
+            progress.accept(skipped);
+        }
+        return skipped;
+    }
+
+    /**
+     * Fails the read if the reading thread has been interrupted, the interrupt status is kept
+     *
+     * @throws InterruptedIOException if the thread has been interrupted
+     */
+    private static void checkInterrupted() throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Reading was cancelled");
+        }
+    }
+
+}
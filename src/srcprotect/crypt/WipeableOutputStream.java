@@ -0,0 +1,85 @@
+package srcprotect.crypt;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Collects sensitive data in memory. Unlike {@link java.io.ByteArrayOutputStream}, every buffer it outgrows is wiped
+ * before it is dropped, and the data it holds can be wiped once it has been copied out
+ */
+public class WipeableOutputStream extends OutputStream {
+
+    /* Some virtual machines reserve a few header words in an array */
+    private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+
+    private byte[] buffer;
+    private int count;
+
+    /**
+     * Creates an empty stream
+     *
+     * @param initialCapacity expected size of the data, sizing it right avoids copying the data while it grows
+     */
+    public WipeableOutputStream(int initialCapacity) {
+        buffer = new byte[Math.max(32, initialCapacity)];
+    }
+
+    @Override
+    public void write(int value) {
+        ensureCapacity(count + 1);
+        buffer[count++] = (byte) value;
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) {
+        if (offset < 0 || length < 0 || length > data.length - offset) {
+            throw new IndexOutOfBoundsException();
+        }
+        ensureCapacity(count + length);
+        System.arraycopy(data, offset, buffer, count, length);
+        count += length;
+    }
+
+    /**
+     * Copies the data out of the stream, the stream still has to be wiped
+     *
+     * @return copy of the data written so far, owned by the caller
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, count);
+    }
+
+    /**
+     * @return number of bytes written so far
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Overwrites the data with zeros and empties the stream
+     */
+    public void wipe() {
+        Arrays.fill(buffer, (byte) 0);
+        count = 0;
+    }
+
+    /**
+     * Grows the buffer so that it holds at least the required number of bytes, the outgrown buffer is wiped
+     *
+     * @param required number of bytes the buffer must hold
+     */
+    private void ensureCapacity(int required) {
+        if (required < 0 || required > MAX_CAPACITY) {
+            throw new OutOfMemoryError("Data does not fit in an array");
+        }
+        if (required <= buffer.length) {
+            return;
+        }
+
+        byte[] grown = Arrays.copyOf(buffer, (int) Math.min(MAX_CAPACITY, Math.max(required, 2L * buffer.length)));
+        Arrays.fill(buffer, (byte) 0);
+        buffer = grown;
+    }
+
+}
@@ -0,0 +1,151 @@
+package srcprotect.ui;
+
+import javafx.concurrent.Task;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+/**
+ * Encryption or decryption of a single file, run in the background so that the window stays responsive. The task
+ * reports how many bytes it has processed along with the throughput, and can be cancelled at any time, in which case
+ * the operation is interrupted and leaves no partial output behind
+ */
+class CryptoTask extends Task<Boolean> {
+
+    /**
+     * Work done by the task
+     */
+    @FunctionalInterface
+    interface Operation {
+
+        /**
+         * Runs the operation
+         *
+         * @param progress receives the number of bytes processed at every step, safe to call from any thread
+         * @return true if the operation succeeded, false otherwise
+         * @throws Exception if the operation fails unexpectedly
+         */
+        boolean run(LongConsumer progress) throws Exception;
+
+    }
+
+    /* Jobs beyond the worker count wait in the queue, the chunked format parallelizes on its own workers */
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(
+            Integer.getInteger("srcprotect.crypto.workers", Math.max(1, Runtime.getRuntime().availableProcessors() / 2)),
+            runnable -> {
+                Thread worker = new Thread(runnable, "crypto-task");
+                worker.setDaemon(true);
+                return worker;
+            }
+    );
+
+    private static final long MESSAGE_PERIOD_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final String name;
+    private final long totalBytes;
+    private final Operation operation;
+
+    private final AtomicLong processedBytes = new AtomicLong();
+    private final AtomicLong lastMessageAt = new AtomicLong();
+    private volatile long startedAt;
+
+    /**
+     * Creates a task, it is not run until it is submitted
+     *
+     * @param name       short description shown to the user
+     * @param totalBytes number of bytes the operation is expected to process
+     * @param operation  work done by the task
+     */
+    CryptoTask(String name, long totalBytes, Operation operation) {
+        this.name = name;
+        this.totalBytes = Math.max(1, totalBytes);
+        this.operation = operation;
+        updateTitle(name);
+        updateMessage("Queued");
+    }
+
+    /**
+     * Queues the task on the crypto executor
+     *
+     * @return the task itself
+     */
+    CryptoTask submit() {
+        EXECUTOR.execute(this);
+        return this;
+    }
+
+    @Override
+    protected Boolean call() throws Exception {
+        startedAt = System.nanoTime();
+        updateProgress(0, totalBytes);
+        updateMessage("Starting");
+
+        boolean succeeded = operation.run(this::progressed);
+        if (isCancelled()) {
+            return false;
+        }
+
+        if (succeeded) {
+            updateProgress(totalBytes, totalBytes);
+        }
+        updateMessage(describe(processedBytes.get()) + (succeeded ? ", done" : ", failed"));
+        return succeeded;
+    }
+
+    @Override
+    protected void cancelled() {
+        updateMessage("Cancelled");
+    }
+
+    /**
+     * Records the processed bytes, the message is refreshed at most every 100 ms so that small steps do not flood
+     * the application thread
+     *
+     * @param bytes number of bytes processed since the last call
+     */
+    private void progressed(long bytes) {
+        long processed = processedBytes.addAndGet(bytes);
+        updateProgress(Math.min(processed, totalBytes), totalBytes);
+
+        long now = System.nanoTime();
+        long last = lastMessageAt.get();
+        if (now - last >= MESSAGE_PERIOD_NANOS && lastMessageAt.compareAndSet(last, now)) {
+            updateMessage(describe(processed));
+        }
+    }
+
+    /**
+     * Describes the progress of the task
+     *
+     * @param processed number of bytes processed so far
+     * @return processed and total size along with the throughput
+     */
+    private String describe(long processed) {
+        double seconds = Math.max(1, System.nanoTime() - startedAt) / 1e9;
+        return String.format("%s of %s, %s/s",
+                formatSize(processed), formatSize(totalBytes), formatSize((long) (processed / seconds)));
+    }
+
+    /**
+     * Formats the number of bytes in the largest fitting unit
+     *
+     * @param bytes number of bytes
+     * @return human readable size
+     */
+    private static String formatSize(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        int unit = (63 - Long.numberOfLeadingZeros(bytes)) / 10;
+        return String.format("%.1f %sB", bytes / (double) (1L << (unit * 10)), " KMGTPE".charAt(unit));
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+}
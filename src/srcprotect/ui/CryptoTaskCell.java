@@ -0,0 +1,57 @@
+package srcprotect.ui;
+
+import javafx.beans.binding.Bindings;
+import javafx.geometry.Pos;
+import javafx.scene.control.*;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Priority;
+
+/**
+ * Row of the job list, shows the progress of a single {@link CryptoTask} and lets the user cancel it
+ */
+class CryptoTaskCell extends ListCell<CryptoTask> {
+
+    private final Label nameLabel = new Label();
+    private final Label messageLabel = new Label();
+    private final ProgressBar progressBar = new ProgressBar();
+    private final Button cancelButton = new Button("Cancel");
+    private final HBox row = new HBox(8, nameLabel, progressBar, messageLabel, cancelButton);
+
+    /**
+     * Creates an empty row
+     */
+    CryptoTaskCell() {
+        row.setAlignment(Pos.CENTER_LEFT);
+        nameLabel.setPrefWidth(110);
+        progressBar.setPrefWidth(100);
+        messageLabel.setMaxWidth(Double.MAX_VALUE);
+        HBox.setHgrow(messageLabel, Priority.ALWAYS);
+        cancelButton.setStyle("-fx-background-color: #063852; "
+                + "-fx-text-fill: #e6df44; "
+                + "-fx-border-color: #e6df44; "
+                + "-fx-border-radius: 5;");
+    }
+
+    @Override
+    protected void updateItem(CryptoTask task, boolean empty) {
+        super.updateItem(task, empty);
+
+        progressBar.progressProperty().unbind();
+        messageLabel.textProperty().unbind();
+        cancelButton.disableProperty().unbind();
+
+        if (empty || task == null) {
+            setGraphic(null);
+            cancelButton.setOnAction(null);
+            return;
+        }
+
+        nameLabel.setText(task.getTitle());
+        progressBar.progressProperty().bind(task.progressProperty());
+        messageLabel.textProperty().bind(task.messageProperty());
+        cancelButton.disableProperty().bind(Bindings.createBooleanBinding(task::isDone, task.stateProperty()));
+        cancelButton.setOnAction(event -> task.cancel());
+        setGraphic(row);
+    }
+
+}
@@ -10,19 +10,23 @@ import javafx.stage.Stage;
 import org.bouncycastle.asn1.ASN1ObjectIdentifier;
 import org.bouncycastle.cms.CMSAlgorithm;
 import srcprotect.certs.CredentialsManager;
-import srcprotect.crypt.Decryptor;
+import srcprotect.crypt.BatchDecryptor;
+import srcprotect.crypt.ChunkedEncryptor;
 import srcprotect.crypt.Encryptor;
+import srcprotect.crypt.ProgressInputStream;
 import srcprotect.users.User;
 import srcprotect.users.Users;
 import srcprotect.utils.CodeCompiler;
 import srcprotect.utils.Files;
 import srcprotect.utils.logging.CustomLogger;
 
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
+import java.nio.file.StandardCopyOption;
 import java.security.KeyPair;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.*;
+import java.util.function.LongConsumer;
 import java.util.logging.Level;
 
 /**
@@ -38,10 +42,7 @@ public class EncryptionWindowController {
     private AnchorPane encryptionModePane, decryptionModePane;
 
     @FXML
-    private Menu recipientMenu;
-
-    @FXML
-    private ComboBox<User> senderSelectionBox;
+    private ComboBox<User> recipientSelectionBox, senderSelectionBox;
 
     @FXML
     private Label recipientLabel, plaintextFileLabel, algorithmLabel, senderLabel, cryptedFileLabel;
@@ -49,6 +50,14 @@ public class EncryptionWindowController {
     @FXML
     private Button encryptAndSendButton, decryptAndRunButton;
 
+    @FXML
+    private ListView<CryptoTask> jobList;
+
+    /* Finished jobs stay listed so that their outcome can be read, only the most recent of them are kept */
+    private static final int FINISHED_JOBS_SHOWN = Integer.getInteger("srcprotect.ui.finishedjobs", 10);
+
+    private List<File> cryptedFiles = Collections.emptyList();
+
     public static User loggedUser;
 
     /**
@@ -61,13 +70,10 @@ public class EncryptionWindowController {
                 "Decryption mode"
         );
 
-        for (User user : Users.getUsers().values()) {
-            MenuItem item = new MenuItem(user.getUsername());
-            recipientMenu.getItems().add(item);
-            item.setOnAction(event -> recipientLabel.setText(((MenuItem) event.getSource()).getText()));
-        }
+        new UserPicker(recipientSelectionBox);
+        new UserPicker(senderSelectionBox);
 
-        senderSelectionBox.getItems().addAll(Users.getUsers().values());
+        jobList.setCellFactory(listView -> new CryptoTaskCell());
 
         decryptionModePane.prefWidthProperty().bind(encryptionModePane.widthProperty());
         decryptionModePane.prefHeightProperty().bind(encryptionModePane.heightProperty());
@@ -117,11 +123,12 @@ public class EncryptionWindowController {
     }
 
     /**
-     * Opens a file selection window in order to enable user to select a file they want to decrypt
+     * Opens a file selection window in order to enable user to select the files they want to decrypt, all of them are
+     * compiled together
      */
     public void selectFileToDecrypt() {
         FileChooser chooser = new FileChooser();
-        chooser.setTitle("Choose encrypted file");
+        chooser.setTitle("Choose encrypted files");
         chooser.setInitialDirectory(new File(
                 System.getProperty("user.home") + File.separator
                         + "Documents" + File.separator + "srcprotect"));
@@ -130,10 +137,16 @@ public class EncryptionWindowController {
         chooser.getExtensionFilters().addAll(
                 new FileChooser.ExtensionFilter("Encrypted Java source code", "*.java.encrypted")
         );
-        File file = chooser.showOpenDialog(new Stage());
+        List<File> files = chooser.showOpenMultipleDialog(new Stage());
 
-        if (file != null) {
-            cryptedFileLabel.setText(file.toString());
+        if (files != null && !files.isEmpty()) {
+            cryptedFiles = new ArrayList<>(files);
+
+            StringJoiner names = new StringJoiner(", ");
+            for (File file : cryptedFiles) {
+                names.add(file.getName());
+            }
+            cryptedFileLabel.setText(cryptedFiles.size() == 1 ? cryptedFiles.get(0).toString() : names.toString());
         }
     }
 
@@ -164,13 +177,198 @@ public class EncryptionWindowController {
     }
 
     /**
-     * Gathers the required information about sender and recipient, then encrypts the data of the selected file and sends it
+     * Gathers the required information about sender and recipient, then encrypts the data of the selected file and
+     * sends it in the background
      */
     public void encryptAndSendFile() {
         User sender = loggedUser;
-        User recipient = Users.getUsers().get(recipientLabel.getText());
+        User recipient = Users.getUser(recipientLabel.getText());
+        File file = new File(plaintextFileLabel.getText());
+        String algorithmID = algorithmLabel.getText();
+
+        CryptoTask task = new CryptoTask(
+                "Encrypting " + file.getName(),
+                file.length(),
+                progress -> encrypt(sender, recipient, file, algorithmID, progress)
+        );
+        task.setOnSucceeded(event -> {
+            if (task.getValue()) {
+                PopUp.displayConfirmationInfo(
+                        "Success",
+                        "Success",
+                        "File encrypted successfully"
+                );
+            } else {
+                PopUp.displayErrorInfo(
+                        "Error",
+                        "Unable to encrypt the file",
+                        "Check log file for more details"
+                );
+            }
+        });
+        task.setOnFailed(event -> CustomLogger.log(Level.WARNING, "Encryption failed unexpectedly", task.getException()));
+
+        addJob(task);
+        task.submit();
+    }
+
+    /**
+     * Decrypts the contents of the files generated through the encryption mode in the background, then compiles them
+     * together and runs the program if possible
+     */
+    public void decryptAndRunFile() {
+        User sender = Users.getUser(senderLabel.getText());
+        User recipient = loggedUser;
+        List<File> files = cryptedFiles;
+
+        long totalLength = 0;
+        for (File file : files) {
+            totalLength += file.length();
+        }
+
+        /* The plaintexts go straight to the compiler and are never written to the disk. The task might be cancelled or
+           fail right after handing them out, so whichever of the worker and the handlers comes last wipes them */
+        Map<String, byte[]> plaintexts = new LinkedHashMap<>();
+        boolean[] abandoned = {false};
+        CryptoTask task = new CryptoTask(
+                files.size() == 1 ? "Decrypting " + files.get(0).getName() : "Decrypting " + files.size() + " files",
+                totalLength,
+                progress -> {
+                    Map<String, byte[]> decrypted = decrypt(sender, recipient, files, progress);
+                    if (decrypted == null) {
+                        return false;
+                    }
+                    synchronized (plaintexts) {
+                        if (!abandoned[0]) {
+                            plaintexts.putAll(decrypted);
+                            return true;
+                        }
+                    }
+                    wipe(decrypted);
+                    return false;
+                }
+        );
+        Runnable abandon = () -> {
+            synchronized (plaintexts) {
+                abandoned[0] = true;
+                wipe(plaintexts);
+            }
+        };
+        task.setOnSucceeded(event -> {
+            if (task.getValue()) {
+                PopUp.displayConfirmationInfo(
+                        "Success",
+                        "Success",
+                        files.size() == 1 ? "File decrypted successfully" : "Files decrypted successfully"
+                );
+
+                CodeCompiler.compile(plaintexts).thenAccept(program -> {
+                    if (program != null) {
+                        runProgram(program);
+                    }
+                });
+            } else {
+                PopUp.displayErrorInfo(
+                        "Error",
+                        files.size() == 1 ? "Unable to decrypt the file" : "Unable to decrypt the files",
+                        "Check log file for more details"
+                );
+            }
+        });
+        task.setOnFailed(event -> {
+            abandon.run();
+            CustomLogger.log(Level.WARNING, "Decryption failed unexpectedly", task.getException());
+        });
+        task.setOnCancelled(event -> abandon.run());
+
+        addJob(task);
+        task.submit();
+    }
+
+    /**
+     * Wipes the plaintexts and forgets them
+     *
+     * @param plaintexts decrypted data by the name of the source file
+     */
+    private static void wipe(Map<String, byte[]> plaintexts) {
+        for (byte[] plaintext : plaintexts.values()) {
+            Arrays.fill(plaintext, (byte) 0);
+        }
+        plaintexts.clear();
+    }
+
+    /**
+     * Adds the task to the job list and drops the oldest finished jobs, so that the list does not grow for as long as
+     * the window is open
+     *
+     * @param task job to be shown
+     */
+    private void addJob(CryptoTask task) {
+        List<CryptoTask> jobs = jobList.getItems();
+        jobs.add(task);
+
+        int finished = 0;
+        for (CryptoTask job : jobs) {
+            if (job.isDone()) {
+                ++finished;
+            }
+        }
+        for (Iterator<CryptoTask> iterator = jobs.iterator(); iterator.hasNext() && finished > FINISHED_JOBS_SHOWN; ) {
+            if (iterator.next().isDone()) {
+                iterator.remove();
+                --finished;
+            }
+        }
+    }
+
+    /**
+     * Runs the only entry point of the program, or lets the user choose one if there are more of them
+     *
+     * @param program compiled program
+     */
+    private static void runProgram(CodeCompiler.Program program) {
+        List<String> entryPoints = program.getEntryPoints();
+        if (entryPoints.isEmpty()) {
+            PopUp.displayErrorInfo(
+                    "Error",
+                    "Unable to run the code",
+                    "None of the classes has a main method"
+            );
+        } else if (entryPoints.size() == 1) {
+            CodeCompiler.run(program, entryPoints.get(0));
+        } else {
+            PopUp.displayChoice(
+                    "Entry point",
+                    "Choose the class to run",
+                    entryPoints,
+                    entryPoint -> CodeCompiler.run(program, entryPoint)
+            );
+        }
+    }
+
+    /**
+     * Signs and encrypts the file for the recipient and stores it in their directory, runs on a crypto worker.
+     * The file is encrypted into a temporary file of its own and moved into place only once it is complete, so jobs
+     * sending a file of the same name to the same recipient never touch each other's output, the last one to finish
+     * replaces the others. Nothing is left in the directory of the recipient if the encryption fails or is cancelled
+     *
+     * @param sender      user who signs the file
+     * @param recipient   user the file is sent to
+     * @param file        location of the plaintext file
+     * @param algorithmID identifier of the selected algorithm
+     * @param progress    receives the number of plaintext bytes processed at every step
+     * @return true if the file was encrypted and stored, false if any error occurs
+     */
+    private static boolean encrypt(User sender, User recipient, File file, String algorithmID, LongConsumer progress) {
         KeyPair senderKeyPair = sender.getUserKeyPair();
+        File recipientDir = Files.getUserDir(recipient.getUsername());
+        File encryptedFile = new File(recipientDir + File.separator + file.getName() + ".encrypted");
+
+        File partialFile = null;
+        boolean encrypted = false;
         try {
+            partialFile = File.createTempFile(encryptedFile.getName() + ".", ".partial", recipientDir);
+
             X509Certificate senderCertificate = CredentialsManager.getUserCertificate(
                     Files.getUserCertificateLocation(sender.getUsername())
             );
@@ -178,11 +376,7 @@ public class EncryptionWindowController {
                     Files.getUserCertificateLocation(recipient.getUsername())
             );
 
-            File file = new File(plaintextFileLabel.getText());
-            byte[] bytesFromFile = java.nio.file.Files.readAllBytes(file.toPath());
-
             ASN1ObjectIdentifier algorithm;
-            String algorithmID = algorithmLabel.getText();
             switch (algorithmID) {
                 case "DES_EDE3_CBC":
                     algorithm = CMSAlgorithm.DES_EDE3_CBC;
@@ -200,79 +394,69 @@ public class EncryptionWindowController {
                     algorithm = CMSAlgorithm.CAMELLIA256_CBC;
             }
 
-            Encryptor encryptor = new Encryptor(senderKeyPair, senderCertificate, receiverCertificate);
-
-            byte[] encrypted = encryptor.encrypt(bytesFromFile, algorithm);
-
-            if (encrypted != null) {
-                PopUp.displayConfirmationInfo(
-                        "Success",
-                        "Success",
-                        "File encrypted successfully"
+            if (algorithmID.equals("AES256_GCM_CHUNKED")) {
+                ChunkedEncryptor encryptor = new ChunkedEncryptor(
+                        senderKeyPair,
+                        senderCertificate,
+                        Collections.singletonList(receiverCertificate)
                 );
-
-                String fileName = file.getName() + ".encrypted";
-                File encryptedFile = new File(Files.getUserDir(recipient.getUsername()) + File.separator + fileName);
-                java.nio.file.Files.write(encryptedFile.toPath(), encrypted);
+                encrypted = encryptor.encrypt(file, partialFile, progress);
             } else {
-                PopUp.displayErrorInfo(
-                        "Error",
-                        "Unable to encrypt the file",
-                        "Check log file for more details"
-                );
+                Encryptor encryptor = new Encryptor(senderKeyPair, senderCertificate, receiverCertificate);
+                try (InputStream input = new ProgressInputStream(new BufferedInputStream(new FileInputStream(file)), progress);
+                     OutputStream output = new BufferedOutputStream(new FileOutputStream(partialFile))) {
+                    encrypted = encryptor.encrypt(input, output, algorithm);
+                }
+            }
+
+            if (encrypted) {
+                java.nio.file.Files.move(partialFile.toPath(), encryptedFile.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
             }
         } catch (IOException exception) {
+            encrypted = false;
             CustomLogger.log(Level.WARNING, "An I/O error occurred, unable to read from file", exception);
         } catch (CertificateException exception) {
             CustomLogger.log(Level.WARNING, "Unable to read certificate from file", exception);
+        } finally {
+            if (!encrypted && partialFile != null) {
+                try {
+                    java.nio.file.Files.deleteIfExists(partialFile.toPath());
+                } catch (IOException exception) {
+                    CustomLogger.log(Level.WARNING, "Unable to discard partially encrypted file", exception);
+                }
+            }
         }
-
+        return encrypted;
     }
 
     /**
-     * Decrypts the content of the file generated through the encryption mode and runs it if possible
+     * Decrypts the files into memory in parallel and verifies the signature of the sender on each of them, runs on
+     * a crypto worker. The plaintexts are handed out only if every file is decrypted and verified
+     *
+     * @param sender    user who signed the files
+     * @param recipient user the files were sent to
+     * @param files     locations of the encrypted files
+     * @param progress  receives the number of bytes processed at every step
+     * @return decrypted data by the name of the source file, or null if any error occurs
      */
-    public void decryptAndRunFile() {
-        User sender = Users.getUsers().get(senderLabel.getText());
-        User recipient = loggedUser;
-        KeyPair recipientKeyPair = recipient.getUserKeyPair();
+    private static Map<String, byte[]> decrypt(User sender, User recipient, List<File> files, LongConsumer progress) {
         try {
             X509Certificate senderCert = CredentialsManager.getUserCertificate(
                     Files.getUserCertificateLocation(sender.getUsername())
             );
+            X509Certificate recipientCert = CredentialsManager.getUserCertificate(
+                    Files.getUserCertificateLocation(recipient.getUsername())
+            );
 
-            File file = new File(cryptedFileLabel.getText());
-            byte[] bytesFromFile = java.nio.file.Files.readAllBytes(file.toPath());
-
-            Decryptor decryptor = new Decryptor(recipientKeyPair, senderCert);
-
-            byte[] decrypted = decryptor.decrypt(bytesFromFile);
-
-            if (decrypted != null) {
-                PopUp.displayConfirmationInfo(
-                        "Success",
-                        "Success",
-                        "File decrypted successfully"
-                );
-
-                String fileName = file.getName().replace(".encrypted", "");
-                File decryptedFile = new File(Files.getUserDir(recipient.getUsername()) + File.separator + fileName);
-                java.nio.file.Files.write(decryptedFile.toPath(), decrypted);
-
-                CodeCompiler.compileAndRun(decryptedFile);
-            } else {
-                PopUp.displayErrorInfo(
-                        "Error",
-                        "Unable to decrypt the file",
-                        "Check log file for more details"
-                );
-            }
+            BatchDecryptor decryptor = new BatchDecryptor(recipient.getUserKeyPair(), recipientCert, senderCert);
+            return decryptor.decryptAll(files, progress);
         } catch (IOException exception) {
             CustomLogger.log(Level.WARNING, "An I/O error occurred, unable to read from file", exception);
         } catch (CertificateException exception) {
             CustomLogger.log(Level.WARNING, "Unable to read certificate from file", exception);
         }
-
+        return null;
     }
 
     /**
@@ -284,11 +468,20 @@ public class EncryptionWindowController {
         algorithmLabel.setText(((MenuItem) actionEvent.getSource()).getId());
     }
 
+    /**
+     * Displays the recipient selection choice
+     */
+    public void selectRecipient() {
+        User recipient = recipientSelectionBox.getValue();
+        recipientLabel.setText(recipient == null ? "" : recipient.getUsername());
+    }
+
     /**
      * Displays the sender selection choice
      */
     public void selectSender() {
-        senderLabel.setText(senderSelectionBox.getSelectionModel().getSelectedItem().getUsername());
+        User sender = senderSelectionBox.getValue();
+        senderLabel.setText(sender == null ? "" : sender.getUsername());
     }
 
 }
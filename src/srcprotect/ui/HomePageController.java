@@ -2,6 +2,8 @@ package srcprotect.ui;
 
 import javafx.beans.binding.Bindings;
 import javafx.beans.binding.BooleanBinding;
+import javafx.beans.property.BooleanProperty;
+import javafx.beans.property.SimpleBooleanProperty;
 import javafx.concurrent.Task;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
@@ -17,15 +19,14 @@ import javafx.stage.Modality;
 import javafx.stage.Stage;
 import srcprotect.certs.CertificateAuthority;
 import srcprotect.certs.CredentialsManager;
+import srcprotect.certs.PasswordHasher;
 import srcprotect.users.User;
 import srcprotect.users.Users;
 import srcprotect.utils.logging.CustomLogger;
 
 import java.io.File;
 import java.io.IOException;
-import java.security.NoSuchAlgorithmException;
 import java.security.cert.*;
-import java.util.Arrays;
 import java.util.logging.Level;
 
 /**
@@ -50,8 +51,11 @@ public class HomePageController {
 
     private Label certificatePathLabel = new Label();
 
+    private BooleanProperty verifyingPassword = new SimpleBooleanProperty();
+
     /**
-     * Initializes the UI components and forbids any actions until the Certificate Authority is initialized
+     * Initializes the UI components and forbids any actions until the Certificate Authority is initialized and the
+     * password hashing parameters are calibrated
      */
     @FXML
     public void initialize() {
@@ -59,6 +63,8 @@ public class HomePageController {
             @Override
             protected Void call() {
                 CertificateAuthority.initialize();
+                /* Calibrating the hashing parameters takes a while, so it must not be left to the first login */
+                PasswordHasher.getParameters();
                 return null;
             }
         };
@@ -68,7 +74,7 @@ public class HomePageController {
                 .or(Bindings.isEmpty(passwordInput.textProperty()))
                 .or(Bindings.isEmpty(certificatePathLabel.textProperty()));
 
-        loginButton.disableProperty().bind(initializer.runningProperty().or(fieldsNotFilled));
+        loginButton.disableProperty().bind(initializer.runningProperty().or(verifyingPassword).or(fieldsNotFilled));
         newAccountButton.disableProperty().bind(initializer.runningProperty());
     }
 
@@ -94,14 +100,16 @@ public class HomePageController {
     }
 
     /**
-     * Checks the input of all the fields in order to authenticate the user
+     * Checks the input of all the fields in order to authenticate the user. The password is verified in the background,
+     * as hashing it takes a noticeable time, and the login is disabled meanwhile
      */
     public void attemptLogin() {
         String username = usernameInput.getText();
         String password = passwordInput.getText();
 
         /* Check if a user with the specified username exists */
-        if (!Users.getUsers().containsKey(username)) {
+        User loggingUser = Users.getUser(username);
+        if (loggingUser == null) {
             PopUp.displayWarningInfo(
                     "Warning",
                     "Invalid username",
@@ -112,25 +120,51 @@ public class HomePageController {
             return;
         }
 
-        /* Generate hash of the entered password */
-        User loggingUser = Users.getUsers().get(username);
-        String encodedPasswordHash = null;
-        try {
-            encodedPasswordHash = CredentialsManager.getEncodedPasswordHashAsString(password, username.getBytes());
-        } catch (NoSuchAlgorithmException exception) {
-            CustomLogger.log(Level.WARNING, Arrays.toString(exception.getStackTrace()), exception);
-        }
+        Task<Boolean> verifier = new Task<Boolean>() {
+            @Override
+            protected Boolean call() {
+                if (!PasswordHasher.verify(password, username, loggingUser.getEncodedPasswordHash())) {
+                    return false;
+                }
 
-        /* Check if a password is valid */
-        if (!loggingUser.getEncodedPasswordHash().equals(encodedPasswordHash)) {
-            PopUp.displayWarningInfo(
-                    "Warning",
-                    "Unable to login",
-                    "Invalid password entered"
-            );
-            passwordInput.clear();
-            return;
-        }
+                /* Hashes computed with outdated parameters are upgraded while the password is known */
+                if (PasswordHasher.needsRehash(loggingUser.getEncodedPasswordHash())) {
+                    loggingUser.setEncodedPasswordHash(PasswordHasher.hash(password));
+                    Users.updateUser(loggingUser);
+                }
+                return true;
+            }
+        };
+        verifier.setOnSucceeded(event -> {
+            verifyingPassword.set(false);
+            if (verifier.getValue()) {
+                completeLogin(loggingUser, password);
+            } else {
+                PopUp.displayWarningInfo(
+                        "Warning",
+                        "Unable to login",
+                        "Invalid password entered"
+                );
+                passwordInput.clear();
+            }
+        });
+        verifier.setOnFailed(event -> {
+            verifyingPassword.set(false);
+            CustomLogger.log(Level.WARNING, "Password verification failed unexpectedly", verifier.getException());
+        });
+
+        verifyingPassword.set(true);
+        new Thread(verifier).start();
+    }
+
+    /**
+     * Checks the selected certificate of the user whose password has been verified, then opens the encryption window
+     *
+     * @param loggingUser user who is logging in
+     * @param password    verified password of the user
+     */
+    private void completeLogin(User loggingUser, String password) {
+        String username = loggingUser.getUsername();
 
         /* Read details from the selected certificate file */
         X509Certificate cert;
@@ -168,11 +202,11 @@ public class HomePageController {
         /*Check if the selected certificate is valid*/
         try {
             cert.checkValidity();
-            if (CertificateAuthority.getCRL().isRevoked(cert)) {
+            if (CertificateAuthority.isRevoked(cert)) {
                 PopUp.displayWarningInfo(
                         "Warning",
                         "Certificate is revoked",
-                        CertificateAuthority.getCRL().getRevokedCertificate(cert).getRevocationReason().toString()
+                        CertificateAuthority.getRevocationReason(cert).toString()
                 );
                 return;
             }
@@ -206,7 +240,7 @@ public class HomePageController {
         } catch (IOException exception) {
             CustomLogger.log(Level.WARNING, "Unable to open encryption/decryption mode window", exception);
         }
-        EncryptionWindowController.loggedUser = Users.getUsers().get(username);
+        EncryptionWindowController.loggedUser = loggingUser;
         EncryptionWindowController.loggedUser.loadKeyPair(password);
     }
 
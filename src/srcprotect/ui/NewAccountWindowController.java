@@ -6,13 +6,9 @@ import javafx.scene.control.Button;
 import javafx.scene.control.PasswordField;
 import javafx.scene.control.TextField;
 import javafx.scene.input.MouseEvent;
-import srcprotect.certs.CredentialsManager;
+import srcprotect.certs.PasswordHasher;
 import srcprotect.users.User;
 import srcprotect.users.Users;
-import srcprotect.utils.logging.CustomLogger;
-
-import java.security.NoSuchAlgorithmException;
-import java.util.logging.Level;
 
 /**
  * Controller of the new account window
@@ -52,16 +48,9 @@ public class NewAccountWindowController {
         String password = passwordInput.getText();
         String confirmedPassword = confirmPasswordInput.getText();
 
-        /* Check if the user with the specified username already exists */
+        /* Check if the user with the specified username already exists, before spending time on hashing the password */
         if (Users.getUsers().containsKey(username)) {
-            PopUp.displayWarningInfo(
-                    "Warning",
-                    "User '" + username + "' already exists",
-                    "Enter your credentials using another username"
-            );
-            usernameInput.clear();
-            passwordInput.clear();
-            confirmPasswordInput.clear();
+            rejectExistingUsername(username);
             return;
         }
 
@@ -77,19 +66,16 @@ public class NewAccountWindowController {
             return;
         }
 
-        String encodedPasswordHash = null;
-        try {
-            encodedPasswordHash = CredentialsManager.getEncodedPasswordHashAsString(password, username.getBytes());
-        } catch (NoSuchAlgorithmException exception) {
-            CustomLogger.log(Level.WARNING, "Unable to get password hash, specified algorithm does not exist or is not supported", exception);
-        }
+        String encodedPasswordHash = PasswordHasher.hash(password);
 
+        /* Another account with the same username might have been created in the meantime */
         User newUser = new User(username, encodedPasswordHash);
+        if (!Users.addUserIfAbsent(newUser)) {
+            rejectExistingUsername(username);
+            return;
+        }
         newUser.generateCredentials(password);
 
-        Users.addUser(newUser);
-        Users.storeUsers();
-
         PopUp.displayConfirmationInfo(
                 "Success",
                 "Success",
@@ -98,6 +84,22 @@ public class NewAccountWindowController {
         usernameInput.getScene().getWindow().hide();
     }
 
+    /**
+     * Warns that the username is already taken and clears the fields
+     *
+     * @param username entered username
+     */
+    private void rejectExistingUsername(String username) {
+        PopUp.displayWarningInfo(
+                "Warning",
+                "User '" + username + "' already exists",
+                "Enter your credentials using another username"
+        );
+        usernameInput.clear();
+        passwordInput.clear();
+        confirmPasswordInput.clear();
+    }
+
     /**
      * Changes the appearance of a button while holding it
      *
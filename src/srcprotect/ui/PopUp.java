@@ -2,6 +2,10 @@ package srcprotect.ui;
 
 import javafx.application.Platform;
 import javafx.scene.control.Alert;
+import javafx.scene.control.ChoiceDialog;
+
+import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * Displays some of the important information to the user in the form of the pop-up window
@@ -42,6 +46,23 @@ public class PopUp {
         display(title, headerText, contentText, Alert.AlertType.CONFIRMATION);
     }
 
+    /**
+     * Lets the user pick one of the choices, the first one is selected by default
+     *
+     * @param title      window title
+     * @param headerText question
+     * @param choices    available choices
+     * @param chosen     receives the picked choice, not called if the user closes the window without picking
+     */
+    public static void displayChoice(String title, String headerText, List<String> choices, Consumer<String> chosen) {
+        Platform.runLater(() -> {
+            ChoiceDialog<String> dialog = new ChoiceDialog<>(choices.get(0), choices);
+            dialog.setTitle(title);
+            dialog.setHeaderText(headerText);
+            dialog.showAndWait().ifPresent(chosen);
+        });
+    }
+
     /**
      * In charge of instantiating different types of pop-up windows
      *
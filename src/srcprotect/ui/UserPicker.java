@@ -0,0 +1,107 @@
+package srcprotect.ui;
+
+import javafx.application.Platform;
+import javafx.collections.ObservableList;
+import javafx.scene.control.ComboBox;
+import javafx.scene.control.ListCell;
+import javafx.util.StringConverter;
+import srcprotect.users.User;
+import srcprotect.users.Users;
+
+import java.util.List;
+
+/**
+ * Turns a combo box into a searchable list of users. Typing into the box narrows the list down to the users whose
+ * username starts with the typed text. The list holds a single page of users at first, and the next page is fetched
+ * only once the last fetched user is scrolled into view, so opening the window costs the same no matter how many users
+ * there are. The list view of the box creates cells only for the visible rows
+ */
+class UserPicker {
+
+    private static final int PAGE_SIZE = Integer.getInteger("srcprotect.userpicker.page", 50);
+
+    private final ComboBox<User> box;
+    private String prefix;
+    private boolean lastPageFetched;
+
+    /**
+     * Makes the box searchable and fetches the first page of users
+     *
+     * @param box combo box the user is picked from
+     */
+    UserPicker(ComboBox<User> box) {
+        this.box = box;
+
+        box.setEditable(true);
+        box.setConverter(new StringConverter<User>() {
+            @Override
+            public String toString(User user) {
+                return user == null ? "" : user.getUsername();
+            }
+
+            @Override
+            public User fromString(String username) {
+                return Users.getUser(username);
+            }
+        });
+        box.setCellFactory(listView -> new ListCell<User>() {
+            @Override
+            protected void updateItem(User user, boolean empty) {
+                super.updateItem(user, empty);
+                setText(empty || user == null ? null : user.getUsername());
+
+                int fetched = box.getItems().size();
+                if (!empty && getIndex() == fetched - 1 && !lastPageFetched) {
+                    Platform.runLater(() -> fetchNextPage(fetched));
+                }
+            }
+        });
+
+        /* Changing the items while the editor is being updated would reset the typed text */
+        box.getEditor().textProperty().addListener(
+                (observable, oldText, newText) -> Platform.runLater(() -> search(newText))
+        );
+        search("");
+    }
+
+    /**
+     * Replaces the list with the first page of users whose username starts with the text
+     *
+     * @param text text typed into the box
+     */
+    private void search(String text) {
+        String newPrefix = text == null ? "" : text.trim();
+
+        /* Picking a user writes their username into the editor, which must not narrow the list down */
+        User picked = box.getValue();
+        if (newPrefix.equals(prefix) || (picked != null && picked.getUsername().equals(newPrefix))) {
+            return;
+        }
+
+        prefix = newPrefix;
+        List<User> page = Users.findUsers(prefix, null, PAGE_SIZE);
+        lastPageFetched = page.size() < PAGE_SIZE;
+        box.getItems().setAll(page);
+
+        if (box.getEditor().isFocused() && !page.isEmpty()) {
+            box.show();
+        }
+    }
+
+    /**
+     * Appends the next page of users to the list, unless the list has changed since the page was requested
+     *
+     * @param fetched number of users in the list when the page was requested
+     */
+    private void fetchNextPage(int fetched) {
+        ObservableList<User> items = box.getItems();
+        if (lastPageFetched || items.size() != fetched) {
+            return;
+        }
+
+        List<User> page = Users.findUsers(prefix, items.get(fetched - 1).getUsername(), PAGE_SIZE);
+        lastPageFetched = page.size() < PAGE_SIZE;
+        items.addAll(page);
+    }
+
+}
@@ -16,9 +16,10 @@ import java.util.logging.Level;
 public class User {
 
     private String username;
-    private String encodedPasswordHash;
+    private volatile String encodedPasswordHash;
 
-    private KeyPair userKeyPair;
+    /* Set by the thread generating the credentials, read by the UI thread */
+    private volatile KeyPair userKeyPair;
 
     public User(String username, String encodedPasswordHash) {
         this.username = username;
@@ -34,20 +35,20 @@ public class User {
      */
     public void generateCredentials(String password) {
         new Thread(() -> {
-            userKeyPair = CertificateAuthority.generateKeyPair();
+            userKeyPair = CertificateAuthority.takeKeyPair();
             CertificateAuthority.storeKey(Files.getUserKeyLocation(username), password, userKeyPair);
             CertificateAuthority.generateCertificate(username, userKeyPair.getPublic(), false);
         }).start();
     }
 
     /**
-     * Loads key from the designated file
+     * Loads key from the designated file, unless it is still unlocked in the keyring
      *
      * @param password password of a user
      */
     public void loadKeyPair(String password) {
         try {
-            userKeyPair = CredentialsManager.getUserKey(password, Files.getUserKeyLocation(username));
+            userKeyPair = CredentialsManager.getKeyring().unlock(username, password, Files.getUserKeyLocation(username));
         } catch (IOException exception) {
             CustomLogger.log(
                     Level.WARNING,
@@ -75,6 +76,15 @@ public class User {
         return encodedPasswordHash;
     }
 
+    /**
+     * Setter for the encoded password hash, used when the hash is upgraded to the current parameters
+     *
+     * @param encodedPasswordHash hash of the user's password in the stored form
+     */
+    public void setEncodedPasswordHash(String encodedPasswordHash) {
+        this.encodedPasswordHash = encodedPasswordHash;
+    }
+
     /**
      * Getter for the key pair
      *
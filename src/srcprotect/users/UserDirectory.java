@@ -0,0 +1,69 @@
+package srcprotect.users;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Sorted index of the users, used to search them by the beginning of their username one page at a time instead of
+ * walking through all of them. The users are ordered by their username ignoring case, users whose usernames differ only
+ * in case follow each other
+ * <p>
+ * The index is a skip list, so a page is found in logarithmic time no matter how many users there are, and it can be
+ * read while new users are being added
+ */
+class UserDirectory {
+
+    /* Sorts before every character, so that a username comes right before the usernames it is a prefix of */
+    private static final char SEPARATOR = '\u0000';
+
+    private final NavigableMap<String, User> index = new ConcurrentSkipListMap<>();
+
+    /**
+     * Adds the user to the index, replacing any user with the same username
+     *
+     * @param user user to be indexed
+     */
+    void add(User user) {
+        index.put(toKey(user.getUsername()), user);
+    }
+
+    /**
+     * Finds a page of users whose username starts with the prefix, ignoring case. The next page is found by passing
+     * the username of the last user on the current page
+     *
+     * @param prefix beginning of the username, an empty prefix matches every user
+     * @param after  username the page starts after, or null for the first page
+     * @param limit  maximum number of users on the page
+     * @return users on the page, in order
+     */
+    List<User> find(String prefix, String after, int limit) {
+        String normalizedPrefix = prefix.toLowerCase(Locale.ROOT);
+        NavigableMap<String, User> tail = after == null || toKey(after).compareTo(normalizedPrefix) < 0
+                ? index.tailMap(normalizedPrefix, true)
+                : index.tailMap(toKey(after), false);
+
+        List<User> page = new ArrayList<>(Math.min(limit, 64));
+        for (Map.Entry<String, User> entry : tail.entrySet()) {
+            if (page.size() == limit || !entry.getKey().startsWith(normalizedPrefix)) {
+                break;
+            }
+            page.add(entry.getValue());
+        }
+        return page;
+    }
+
+    /**
+     * Builds the key the user is indexed by
+     *
+     * @param username user's username
+     * @return username in lower case followed by the username itself
+     */
+    private static String toKey(String username) {
+        return username.toLowerCase(Locale.ROOT) + SEPARATOR + username;
+    }
+
+}
@@ -0,0 +1,169 @@
+package srcprotect.users;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Append-only log of the user records. Every new account and every changed password hash is appended as a single
+ * line, and the latest line of a user wins when the log is replayed. Once the log holds many more lines than there are
+ * users, it is compacted by atomically replacing it with a snapshot of the current records
+ * <p>
+ * Every line has the form username::::hash, so a file written as a full snapshot is a valid log as well
+ */
+class UserStore {
+
+    static final String SEPARATOR = "::::";
+
+    private static final int MIN_COMPACTION_RECORDS = 1024;
+
+    private final File file;
+    private int recordCount;
+
+    /**
+     * Creates a store backed by the file
+     *
+     * @param file location of the log
+     */
+    UserStore(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Replays the log. A line left incomplete by a crash while appending is discarded and cut off the log,
+     * so that the next record starts on a line of its own
+     *
+     * @return password hashes of all the users, by username
+     * @throws IOException if an I/O error occurs while reading the log
+     */
+    synchronized Map<String, String> load() throws IOException {
+        Map<String, String> records = new LinkedHashMap<>();
+        recordCount = 0;
+        if (!file.exists()) {
+            return records;
+        }
+
+        byte[] content = java.nio.file.Files.readAllBytes(file.toPath());
+        int lineStart = 0;
+        for (int index = 0; index < content.length; ++index) {
+            if (content[index] != '\n') {
+                continue;
+            }
+
+            String line = new String(content, lineStart, index - lineStart, StandardCharsets.UTF_8).trim();
+            lineStart = index + 1;
+
+            int separator = line.indexOf(SEPARATOR);
+            if (separator > 0) {
+                records.put(line.substring(0, separator), line.substring(separator + SEPARATOR.length()));
+                ++recordCount;
+            }
+        }
+
+        if (lineStart < content.length) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(lineStart);
+                channel.force(true);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Appends the record of the user and forces it to the disk before returning
+     *
+     * @param username user's username
+     * @param hash     user's password hash in the stored form
+     * @throws IOException if an I/O error occurs while writing the log
+     */
+    synchronized void append(String username, String hash) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long position = channel.size();
+
+            /* A record must never be glued to a line that was not terminated */
+            ByteBuffer lastByte = ByteBuffer.allocate(1);
+            boolean terminated = position == 0 || (channel.read(lastByte, position - 1) == 1 && lastByte.get(0) == '\n');
+
+            byte[] line = toLine(username, hash);
+            ByteBuffer buffer = ByteBuffer.allocate(line.length + (terminated ? 0 : 1));
+            if (!terminated) {
+                buffer.put((byte) '\n');
+            }
+            buffer.put(line);
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            channel.force(false);
+        }
+        ++recordCount;
+    }
+
+    /**
+     * Checks whether the log holds enough outdated records to be worth compacting
+     *
+     * @param userCount number of current users
+     * @return true if the log should be compacted, false otherwise
+     */
+    synchronized boolean needsCompaction(int userCount) {
+        return recordCount > MIN_COMPACTION_RECORDS && recordCount > 2 * userCount;
+    }
+
+    /**
+     * Replaces the log with a snapshot of the current records. The snapshot is written to a temporary file first, so
+     * the log is never left half written
+     *
+     * @param users all the current users
+     * @throws IOException if an I/O error occurs while writing the snapshot
+     */
+    synchronized void compact(Collection<User> users) throws IOException {
+        File snapshot = new File(file + ".tmp");
+
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        for (User user : users) {
+            content.write(toLine(user.getUsername(), user.getEncodedPasswordHash()));
+        }
+
+        try (FileChannel channel = FileChannel.open(snapshot.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(content.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        java.nio.file.Files.move(snapshot.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        recordCount = users.size();
+    }
+
+    /**
+     * Getter for the record count
+     *
+     * @return number of records in the log, including the outdated ones
+     */
+    synchronized int getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Encodes a single record
+     *
+     * @param username user's username
+     * @param hash     user's password hash in the stored form
+     * @return line of the log
+     */
+    private static byte[] toLine(String username, String hash) {
+        return (username + SEPARATOR + hash + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+}
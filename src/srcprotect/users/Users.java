@@ -4,50 +4,137 @@ import srcprotect.ui.PopUp;
 import srcprotect.utils.Files;
 import srcprotect.utils.logging.CustomLogger;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 
+/**
+ * Registry of all the users, safe to use from any thread. Lookups never block, and every change is appended
+ * to the users file before the method returns
+ */
 public class Users {
 
-    private static HashMap<String, User> users = new HashMap<>();
+    private static final Map<String, User> users = new ConcurrentHashMap<>();
+
+    private static final UserDirectory DIRECTORY = new UserDirectory();
+
+    private static final UserStore STORE = new UserStore(Files.getUsersFileLocation());
 
     static {
-        if (Files.getUsersFileLocation().exists()) {
-            try (BufferedReader reader = new BufferedReader(new FileReader(Files.getUsersFileLocation()))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    String[] fields = line.split("::::");
-                    users.put(fields[0], new User(fields[0], fields[1]));
-                }
-            } catch (IOException exception) {
-                CustomLogger.log(Level.WARNING, "An I/O error occurred, unable to load users", exception);
+        try {
+            for (Map.Entry<String, String> record : STORE.load().entrySet()) {
+                User user = new User(record.getKey(), record.getValue());
+                users.put(user.getUsername(), user);
+                DIRECTORY.add(user);
             }
+            if (STORE.needsCompaction(users.size())) {
+                STORE.compact(users.values());
+            }
+        } catch (IOException exception) {
+            CustomLogger.log(Level.WARNING, "An I/O error occurred, unable to load users", exception);
         }
     }
 
-    public static HashMap<String, User> getUsers() {
-        return users;
+    /**
+     * Gets all of the users
+     *
+     * @return read-only view of the users by username, reflects the users added later
+     */
+    public static Map<String, User> getUsers() {
+        return Collections.unmodifiableMap(users);
+    }
+
+    /**
+     * Gets the user with the username
+     *
+     * @param username user's username
+     * @return user, or null if there is no user with the username
+     */
+    public static User getUser(String username) {
+        return users.get(username);
+    }
+
+    /**
+     * Finds a page of users whose username starts with the prefix, ignoring case, ordered by their username.
+     * Only the users on the page are visited, so the cost of a page does not grow with the number of users
+     *
+     * @param prefix beginning of the username, an empty prefix matches every user
+     * @param after  username of the last user on the previous page, or null for the first page
+     * @param limit  maximum number of users on the page
+     * @return users on the page, fewer than the limit if it is the last page
+     */
+    public static List<User> findUsers(String prefix, String after, int limit) {
+        return DIRECTORY.find(prefix, after, limit);
     }
 
+    /**
+     * Adds the user unless a user with the same username already exists, then appends their record to the users file.
+     * The check and the addition are a single atomic step
+     *
+     * @param user new user
+     * @return true if the user was added, false if the username is already taken
+     */
+    public static boolean addUserIfAbsent(User user) {
+        if (users.putIfAbsent(user.getUsername(), user) != null) {
+            return false;
+        }
+        DIRECTORY.add(user);
+        storeUser(user);
+        return true;
+    }
+
+    /**
+     * Adds the user, replacing any user with the same username, and appends their record to the users file
+     *
+     * @param user new user
+     */
     public static void addUser(User user) {
         users.put(user.getUsername(), user);
+        DIRECTORY.add(user);
+        storeUser(user);
     }
 
+    /**
+     * Appends the current record of the user to the users file, the latest record of a user replaces the earlier ones
+     *
+     * @param user user whose password hash has changed
+     */
+    public static void updateUser(User user) {
+        storeUser(user);
+    }
+
+    /**
+     * Rewrites the users file so that it holds only the current record of every user. Users added meanwhile
+     * are appended after the snapshot, so none of them is lost
+     */
     public static void storeUsers() {
-        try (FileWriter writer = new FileWriter(Files.getUsersFileLocation())) {
-            for (User user : users.values()) {
-                writer.write(
-                        user.getUsername()
-                                + "::::"
-                                + user.getEncodedPasswordHash()
-                                + System.getProperty("line.separator")
-                );
-                writer.flush();
-            }
+        try {
+            STORE.compact(users.values());
+        } catch (IOException exception) {
+            PopUp.displayWarningInfo(
+                    "Warning",
+                    "Unable to store users data",
+                    "Check log file for more details"
+            );
+            CustomLogger.log(
+                    Level.WARNING,
+                    "An I/O error occurred, could not open users file to store data",
+                    exception
+            );
+        }
+    }
+
+    /**
+     * Appends the record of the user to the users file, and compacts the file once it holds too many outdated records
+     *
+     * @param user user to be stored
+     */
+    private static void storeUser(User user) {
+        try {
+            STORE.append(user.getUsername(), user.getEncodedPasswordHash());
         } catch (IOException exception) {
             PopUp.displayWarningInfo(
                     "Warning",
@@ -59,6 +146,11 @@ public class Users {
                     "An I/O error occurred, could not open users file to store data",
                     exception
             );
+            return;
+        }
+
+        if (STORE.needsCompaction(users.size())) {
+            storeUsers();
         }
     }
 
@@ -1,5 +1,7 @@
 package srcprotect.utils;
 
+import java.security.Key;
+
 /**
  * Collection of the algorithms used in the application, with the exception of the symmetric algorithms used to encrypt file data
  */
@@ -12,4 +14,49 @@ public class Algorithms {
 
     public static final String DIGITAL_SIGNATURE_ALGORITHM = "SHA256withRSA";
 
+    public static final String EC_KEY_ALGORITHM = "EC";
+    public static final String EC_CURVE = "secp256r1";      //NIST P-256
+    public static final String EC_DIGITAL_SIGNATURE_ALGORITHM = "SHA256withECDSA";
+
+    /**
+     * Asymmetric key profiles that can be used for new keys, selected through the srcprotect.key.profile system property
+     */
+    public enum KeyProfile {
+        RSA,
+        EC
+    }
+
+    /**
+     * Gets the profile used to generate new keys, existing keys keep working regardless of the profile
+     *
+     * @return selected key profile, RSA if none or an unknown one is selected
+     */
+    public static KeyProfile getKeyProfile() {
+        try {
+            return KeyProfile.valueOf(System.getProperty("srcprotect.key.profile", KeyProfile.RSA.name()).toUpperCase());
+        } catch (IllegalArgumentException exception) {
+            return KeyProfile.RSA;
+        }
+    }
+
+    /**
+     * Checks whether the key is an elliptic-curve key
+     *
+     * @param key public or private key
+     * @return true if the key belongs to the EC profile, false otherwise
+     */
+    public static boolean isECKey(Key key) {
+        return key.getAlgorithm().equals(EC_KEY_ALGORITHM) || key.getAlgorithm().equals("ECDSA");
+    }
+
+    /**
+     * Gets the digital signature algorithm matching the signing key
+     *
+     * @param key private key used for signing
+     * @return digital signature algorithm of the key's profile
+     */
+    public static String getSignatureAlgorithm(Key key) {
+        return isECKey(key) ? EC_DIGITAL_SIGNATURE_ALGORITHM : DIGITAL_SIGNATURE_ALGORITHM;
+    }
+
 }
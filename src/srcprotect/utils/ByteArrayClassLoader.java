@@ -0,0 +1,32 @@
+package srcprotect.utils;
+
+import java.util.Map;
+
+/**
+ * Loads classes from bytecode held in memory. Classes that are not among them are loaded by the parent
+ */
+class ByteArrayClassLoader extends ClassLoader {
+
+    private final Map<String, byte[]> classes;
+
+    /**
+     * Creates a class loader for the compiled classes
+     *
+     * @param classes bytecode by binary class name
+     * @param parent  class loader used for every other class
+     */
+    ByteArrayClassLoader(Map<String, byte[]> classes, ClassLoader parent) {
+        super(parent);
+        this.classes = classes;
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        byte[] bytecode = classes.get(name);
+        if (bytecode == null) {
+            throw new ClassNotFoundException(name);
+        }
+        return defineClass(name, bytecode, 0, bytecode.length);
+    }
+
+}
@@ -4,66 +4,252 @@ import srcprotect.utils.logging.CustomLogger;
 
 import javax.tools.*;
 import java.io.File;
-import java.lang.reflect.InvocationTargetException;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLClassLoader;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Level;
 
 /**
- * Compiles the code of the decrypted file and tries to run it
+ * Compiles the code of the decrypted files and tries to run it. The code is compiled and loaded in memory, so the source
+ * is never written to the disk, and neither are the compiled classes unless the compilation cache is told to store them
  */
 public class CodeCompiler {
 
     /**
-     * Creates a new thread to try to compile the given code
+     * Classes compiled together, along with the classes that can be run
+     */
+    public static class Program {
+
+        private final Map<String, byte[]> classes;
+        private final List<String> entryPoints;
+
+        private Program(Map<String, byte[]> classes) {
+            this.classes = classes;
+            entryPoints = findEntryPoints(classes);
+        }
+
+        /**
+         * Getter for the entry points
+         *
+         * @return binary names of the classes that declare a main method, sorted
+         */
+        public List<String> getEntryPoints() {
+            return entryPoints;
+        }
+
+        /**
+         * Finds the entry point with the given name, which is prefixed with its package if the code declares one
+         *
+         * @param className simple or binary name of the class
+         * @return binary name of the class, or the given name if no entry point matches it
+         */
+        public String findEntryPoint(String className) {
+            for (String entryPoint : entryPoints) {
+                if (entryPoint.equals(className) || entryPoint.endsWith("." + className)) {
+                    return entryPoint;
+                }
+            }
+            return className;
+        }
+
+        /**
+         * Finds the classes that declare a public static main method, the classes themselves do not have to be public.
+         * The classes are loaded in a class loader used only for the search, and none of them is initialized, so no
+         * code of the program runs
+         *
+         * @param classes bytecode by binary class name
+         * @return binary names of the classes, sorted
+         */
+        private static List<String> findEntryPoints(Map<String, byte[]> classes) {
+            ClassLoader classLoader = new ByteArrayClassLoader(classes, CodeCompiler.class.getClassLoader());
+
+            List<String> entryPoints = new ArrayList<>();
+            for (String className : classes.keySet()) {
+                try {
+                    Method main = Class.forName(className, false, classLoader).getDeclaredMethod("main", String[].class);
+                    if (Modifier.isPublic(main.getModifiers()) && Modifier.isStatic(main.getModifiers())) {
+                        entryPoints.add(className);
+                    }
+                } catch (NoSuchMethodException exception) {
+                    /* Not an entry point */
+                } catch (ClassNotFoundException | LinkageError exception) {
+                    CustomLogger.log(Level.WARNING, "Unable to inspect compiled class " + className, exception);
+                }
+            }
+            Collections.sort(entryPoints);
+            return Collections.unmodifiableList(entryPoints);
+        }
+
+    }
+
+    private static final CompilationCache CACHE = new CompilationCache(
+            Long.getLong("srcprotect.compilecache.size", 32) * 1024 * 1024,
+            Boolean.getBoolean("srcprotect.compilecache.disk") ? Files.getCompilationCacheDir() : null,
+            Files.getCompilationCacheKeyFile()
+    );
+
+    private static final CompileService COMPILER = new CompileService(Integer.getInteger("srcprotect.compiler.workers", 2));
+
+    private static final ExecutionManager RUNNER = new ExecutionManager(
+            Integer.getInteger("srcprotect.runner.workers", 2),
+            Long.getLong("srcprotect.runner.timeout", 60) * 1000,
+            Long.getLong("srcprotect.runner.cputime", 30) * 1000,
+            Integer.getInteger("srcprotect.runner.output", 1024) * 1024
+    );
+
+    /**
+     * Reads the code of the given file and tries to compile and run it
      *
-     * @param file decrypted file location
+     * @param file source file location
      */
     public static void compileAndRun(File file) {
-        new Thread(() -> {
-            JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
-            StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null);
+        try {
+            compileAndRun(file.getName(), java.nio.file.Files.readAllBytes(file.toPath()));
+        } catch (IOException exception) {
+            CustomLogger.log(Level.WARNING, "An I/O error occurred, unable to read source file", exception);
+        }
+    }
+
+    /**
+     * Tries to compile the given code in the background and run it. The bytes of the code are wiped before this method
+     * returns, and the decoded code is wiped once it has been compiled
+     *
+     * @param fileName name of the source file, the class named after it is run
+     * @param source   source code encoded in UTF-8
+     */
+    public static void compileAndRun(String fileName, byte[] source) {
+        String className = fileName.replace(".java", "");
+        compile(Collections.singletonMap(fileName, source)).thenAccept(program -> {
+            if (program != null) {
+                run(program, program.findEntryPoint(className));
+            }
+        });
+    }
 
-            List<File> files = new ArrayList<>();
-            files.add(file);
+    /**
+     * Compiles all of the given sources together in a single compilation on the compile service, so that they can
+     * refer to each other, and prints the errors, if any. Code that has been compiled before is served from the
+     * compilation cache without running the compiler. The bytes of the sources are wiped before this method returns,
+     * and the decoded sources are wiped once they have been compiled
+     *
+     * @param sources source code encoded in UTF-8 by the name of its file
+     * @return pending compiled program, completed with null if the sources do not compile
+     */
+    public static CompletableFuture<Program> compile(Map<String, byte[]> sources) {
+        Map<String, char[]> contents = new LinkedHashMap<>();
+        List<InMemoryFileManager.SourceObject> sourceObjects = new ArrayList<>();
+        for (Map.Entry<String, byte[]> source : sources.entrySet()) {
+            String className = source.getKey().replace(".java", "");
+            char[] content = decode(source.getValue());
+            Arrays.fill(source.getValue(), (byte) 0);
 
-            Iterable<? extends JavaFileObject> compilationUnits = fileManager.getJavaFileObjectsFromFiles(files);
+            contents.put(className, content);
+            sourceObjects.add(InMemoryFileManager.source(className, content));
+        }
 
-            List<String> options = Arrays.asList("-classpath", System.getProperty("java.class.path"));
+        String key = CompilationCache.key(contents, COMPILER.getOptions());
+        Map<String, byte[]> cached = CACHE.get(key);
+        if (cached != null) {
+            wipe(sourceObjects);
+            System.out.println("Compiled successfully" + System.getProperty("line.separator"));
+            return CompletableFuture.completedFuture(new Program(cached));
+        }
 
-            DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        long start = System.nanoTime();
 
-            System.out.println("Compilation in progress...");
-            if (!compiler.getTask(null, fileManager, diagnostics, options, null, compilationUnits).call()) {
-                for (Diagnostic diagnostic : diagnostics.getDiagnostics()) {
-                    String error = String.format("Compilation error: Line %d - %s%n", diagnostic.getLineNumber(), diagnostic.getMessage(null));
+        System.out.println("Compilation in progress...");
+        return COMPILER.compile(sourceObjects, diagnostics).handle((classes, exception) -> {
+            wipe(sourceObjects);
+            if (exception != null) {
+                CustomLogger.log(Level.WARNING, "Compilation failed unexpectedly", exception);
+                return null;
+            }
+            if (classes == null) {
+                for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+                    String file = diagnostic.getSource() == null ? "" : diagnostic.getSource().getName() + ", ";
+                    String error = String.format("Compilation error: %sLine %d - %s%n", file, diagnostic.getLineNumber(), diagnostic.getMessage(null));
                     System.err.print(error);
                 }
-            } else {
-                System.out.println("Compiled successfully" + System.getProperty("line.separator"));
+                return null;
+            }
 
-                try {
-                    String directory = file.toString().substring(0, file.toString().lastIndexOf(File.separator));
-                    URLClassLoader classLoader = new URLClassLoader(new URL[]{new File(directory).toURI().toURL()});
-                    Class<?> loadedClass = classLoader.loadClass(file.getName().replace(".java", ""));
-                    loadedClass.getDeclaredMethod("main", new Class[]{String[].class}).invoke(null, new Object[]{null});
-                } catch (ClassNotFoundException exception) {
-                    CustomLogger.log(Level.WARNING, "Class not found", exception);
-                } catch (NoSuchMethodException exception) {
-                    CustomLogger.log(Level.WARNING, "Cannot find main method", exception);
-                } catch (IllegalAccessException exception) {
-                    CustomLogger.log(Level.WARNING, "Illegal access", exception);
-                } catch (InvocationTargetException exception) {
-                    CustomLogger.log(Level.WARNING, "Method invocation failed", exception);
-                } catch (MalformedURLException exception) {
-                    CustomLogger.log(Level.WARNING, "Unable to form URL", exception);
-                }
+            CACHE.put(key, classes, System.nanoTime() - start);
+            System.out.println("Compiled successfully" + System.getProperty("line.separator"));
+            return new Program(classes);
+        });
+    }
+
+    /**
+     * Runs the main method of the entry point of the program on the execution manager, then prints how the run ended
+     * and the resources it used
+     *
+     * @param program    compiled program
+     * @param entryPoint binary name of the class with the main method
+     * @return pending result of the run
+     */
+    public static CompletableFuture<ExecutionManager.Result> run(Program program, String entryPoint) {
+        return RUNNER.submit(program.classes, entryPoint, new String[0]).thenApply(result -> {
+            if (result.getFailure() != null) {
+                System.err.print(result.getFailure());
             }
-        }).start();
+            System.out.println(System.getProperty("line.separator") + "Run finished - " + result);
+            return result;
+        });
+    }
+
+    /**
+     * Starts the compiler workers in the background, so that the first compilation does not pay for starting them
+     */
+    public static void warmUp() {
+        COMPILER.warmUp();
+    }
+
+    /**
+     * Stops the compiler workers and releases their file managers, and stops the running programs
+     */
+    public static void shutdown() {
+        COMPILER.shutdown();
+        RUNNER.shutdown();
+    }
+
+    /**
+     * Getter for the compilation cache
+     *
+     * @return cache of the compiled bytecode, along with its statistics
+     */
+    public static CompilationCache getCompilationCache() {
+        return CACHE;
+    }
+
+    /**
+     * Overwrites the sources with zeros
+     *
+     * @param sourceObjects compiled sources
+     */
+    private static void wipe(List<InMemoryFileManager.SourceObject> sourceObjects) {
+        for (InMemoryFileManager.SourceObject sourceObject : sourceObjects) {
+            sourceObject.wipe();
+        }
+    }
+
+    /**
+     * Decodes the source code, the intermediate buffer is wiped
+     *
+     * @param source source code encoded in UTF-8
+     * @return characters of the source code
+     */
+    private static char[] decode(byte[] source) {
+        CharBuffer decoded = StandardCharsets.UTF_8.decode(ByteBuffer.wrap(source));
+        char[] content = new char[decoded.remaining()];
+        decoded.get(content);
+        Arrays.fill(decoded.array(), '\0');
+        return content;
     }
 
 }
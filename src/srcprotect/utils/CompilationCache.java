@@ -0,0 +1,431 @@
+package srcprotect.utils;
+
+import srcprotect.utils.logging.CustomLogger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Keeps the bytecode of recently compiled code, so that running the same code again does not compile it again.
+ * The bytecode is looked up by the SHA-256 hash of the source code along with everything else that affects the
+ * compilation, and the least recently used bytecode is evicted once the cache holds more than its capacity
+ * <p>
+ * The bytecode can also be stored in a directory, so that it survives restarts. It is derived from the protected
+ * code, so the directory is only used when it is given explicitly. Bytecode read from the directory is run, so every
+ * stored entry is authenticated with HMAC-SHA256 under a key kept in a file readable only by its owner, and an entry
+ * that was modified or moved to another name is discarded. If the key cannot be read, a key of this process is used
+ * and the entries stored by other processes are never trusted
+ * <p>
+ * Jars and directories on the class path are part of the key only through their size and modification time, so
+ * replacing a jar with another one of the same size and time, or changing a class inside a directory, is not noticed
+ */
+public class CompilationCache {
+
+    /**
+     * Compiled classes along with the time it took to compile them
+     */
+    private static class Entry {
+
+        private final Map<String, byte[]> classes;
+        private final long compileNanos;
+        private final long size;
+
+        private Entry(Map<String, byte[]> classes, long compileNanos) {
+            this.classes = Collections.unmodifiableMap(new LinkedHashMap<>(classes));
+            this.compileNanos = compileNanos;
+            long bytes = 0;
+            for (byte[] bytecode : classes.values()) {
+                bytes += bytecode.length;
+            }
+            size = bytes;
+        }
+
+    }
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int MAC_KEY_LENGTH = 32;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final long capacityBytes;
+    private final File directory;
+    private final SecretKeySpec macKey;
+    private long sizeBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong savedNanos = new AtomicLong();
+
+    /**
+     * Creates an empty cache
+     *
+     * @param capacityBytes maximum total size of the bytecode kept in memory
+     * @param directory     where the bytecode is also stored, or null to keep it in memory only
+     * @param keyFile       where the key the stored bytecode is authenticated with is kept, it is created if missing
+     */
+    public CompilationCache(long capacityBytes, File directory, File keyFile) {
+        this.capacityBytes = capacityBytes;
+        this.directory = directory;
+        if (directory != null) {
+            directory.mkdirs();
+            macKey = loadMacKey(keyFile);
+        } else {
+            macKey = null;
+        }
+    }
+
+    /**
+     * Reads the key the stored bytecode is authenticated with, or creates it with permissions for its owner only if
+     * it does not exist yet
+     *
+     * @param keyFile location of the key
+     * @return key shared by every process using the same key file, or a key of this process if it cannot be read
+     */
+    private static SecretKeySpec loadMacKey(File keyFile) {
+        try {
+            if (!keyFile.exists()) {
+                byte[] key = new byte[MAC_KEY_LENGTH];
+                new SecureRandom().nextBytes(key);
+                try {
+                    try {
+                        java.nio.file.Files.createFile(keyFile.toPath(),
+                                PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+                    } catch (UnsupportedOperationException exception) {
+                        java.nio.file.Files.createFile(keyFile.toPath());
+                    }
+                    java.nio.file.Files.write(keyFile.toPath(), key);
+                } catch (FileAlreadyExistsException exception) {
+                    /* Created by another process in the meantime */
+                } finally {
+                    Arrays.fill(key, (byte) 0);
+                }
+            }
+
+            byte[] key = java.nio.file.Files.readAllBytes(keyFile.toPath());
+            try {
+                if (key.length != MAC_KEY_LENGTH) {
+                    throw new IOException("Compilation cache key is corrupt");
+                }
+                return new SecretKeySpec(key, MAC_ALGORITHM);
+            } finally {
+                Arrays.fill(key, (byte) 0);
+            }
+        } catch (IOException exception) {
+            CustomLogger.log(Level.WARNING, "Unable to read the compilation cache key, bytecode stored by other processes is not trusted", exception);
+            byte[] key = new byte[MAC_KEY_LENGTH];
+            new SecureRandom().nextBytes(key);
+            SecretKeySpec processKey = new SecretKeySpec(key, MAC_ALGORITHM);
+            Arrays.fill(key, (byte) 0);
+            return processKey;
+        }
+    }
+
+    /**
+     * Computes the key the bytecode of the code is cached by
+     *
+     * @param contents source code by the name of the top-level class it declares
+     * @param options  compiler options, including the class path whose entries are identified by size and time
+     * @return hex encoded SHA-256 hash
+     */
+    public static String key(Map<String, char[]> contents, List<String> options) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException exception) {
+            throw new IllegalStateException("SHA-256 is not supported", exception);
+        }
+
+        /* Every part is terminated, so that moving characters from one part to the next changes the hash */
+        digest.update((System.getProperty("java.version") + '\0').getBytes(StandardCharsets.UTF_8));
+        String previousOption = null;
+        for (String option : options) {
+            digest.update((option + '\0').getBytes(StandardCharsets.UTF_8));
+            if ("-classpath".equals(previousOption) || "-cp".equals(previousOption)) {
+                for (String location : option.split(File.pathSeparator)) {
+                    File classPathEntry = new File(location);
+                    digest.update(ByteBuffer.allocate(2 * Long.BYTES)
+                            .putLong(classPathEntry.length())
+                            .putLong(classPathEntry.lastModified())
+                            .array());
+                }
+            }
+            previousOption = option;
+        }
+        for (Map.Entry<String, char[]> content : new TreeMap<>(contents).entrySet()) {
+            digest.update(('\0' + content.getKey() + '\0').getBytes(StandardCharsets.UTF_8));
+            ByteBuffer encoded = StandardCharsets.UTF_8.encode(CharBuffer.wrap(content.getValue()));
+            digest.update(ByteBuffer.allocate(Integer.BYTES).putInt(encoded.remaining()).array());
+            digest.update(encoded);
+            Arrays.fill(encoded.array(), (byte) 0);
+        }
+
+        StringBuilder key = new StringBuilder();
+        for (byte value : digest.digest()) {
+            key.append(String.format("%02x", value));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Gets the bytecode cached by the key, from memory or from the directory
+     *
+     * @param key key computed by {@link #key(Map, List)}
+     * @return bytecode by binary class name, or null if it is not cached
+     */
+    public Map<String, byte[]> get(String key) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        if (entry == null && directory != null) {
+            entry = load(key);
+            if (entry != null) {
+                putInMemory(key, entry);
+            }
+        }
+
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        savedNanos.addAndGet(entry.compileNanos);
+        return entry.classes;
+    }
+
+    /**
+     * Caches the bytecode of freshly compiled code
+     *
+     * @param key          key computed by {@link #key(Map, List)}
+     * @param classes      bytecode by binary class name
+     * @param compileNanos time it took to compile the code
+     */
+    public void put(String key, Map<String, byte[]> classes, long compileNanos) {
+        Entry entry = new Entry(classes, compileNanos);
+        putInMemory(key, entry);
+        if (directory != null) {
+            store(key, entry);
+        }
+    }
+
+    /**
+     * Discards every cached bytecode, both in memory and in the directory
+     */
+    public void clear() {
+        synchronized (this) {
+            entries.clear();
+            sizeBytes = 0;
+        }
+
+        File[] files = directory == null ? null : directory.listFiles((dir, name) -> name.endsWith(".classes"));
+        if (files != null) {
+            for (File file : files) {
+                try {
+                    java.nio.file.Files.deleteIfExists(file.toPath());
+                } catch (IOException exception) {
+                    CustomLogger.log(Level.WARNING, "Unable to delete cached bytecode", exception);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the entry to memory, then evicts the least recently used entries until the cache fits its capacity.
+     * Bytecode larger than the whole capacity is not kept in memory
+     *
+     * @param key   key of the entry
+     * @param entry compiled classes
+     */
+    private synchronized void putInMemory(String key, Entry entry) {
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            sizeBytes -= previous.size;
+        }
+        sizeBytes += entry.size;
+
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (sizeBytes > capacityBytes && eldest.hasNext()) {
+            sizeBytes -= eldest.next().size;
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Reads the entry from the directory and checks that it was stored under the same key by a process holding the
+     * cache key. An entry that fails the check is deleted
+     *
+     * @param key key of the entry
+     * @return compiled classes, or null if the entry is not stored, cannot be read or is not authentic
+     */
+    private Entry load(String key) {
+        File file = new File(directory, key + ".classes");
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            byte[] stored = java.nio.file.Files.readAllBytes(file.toPath());
+            int contentLength = stored.length - MAC_KEY_LENGTH;
+            if (contentLength < 0 || !MessageDigest.isEqual(
+                    Arrays.copyOfRange(stored, contentLength, stored.length),
+                    authenticate(key, stored, contentLength))) {
+                CustomLogger.log(Level.WARNING, "Discarding cached bytecode",
+                        new IOException("Cached bytecode " + file.getName() + " is not authentic"));
+                java.nio.file.Files.deleteIfExists(file.toPath());
+                return null;
+            }
+
+            DataInputStream input = new DataInputStream(new ByteArrayInputStream(stored, 0, contentLength));
+            long compileNanos = input.readLong();
+            int classCount = input.readInt();
+            Map<String, byte[]> classes = new LinkedHashMap<>();
+            for (int index = 0; index < classCount; ++index) {
+                String className = input.readUTF();
+                byte[] bytecode = new byte[input.readInt()];
+                input.readFully(bytecode);
+                classes.put(className, bytecode);
+            }
+            return new Entry(classes, compileNanos);
+        } catch (IOException exception) {
+            CustomLogger.log(Level.WARNING, "Unable to read cached bytecode", exception);
+            return null;
+        }
+    }
+
+    /**
+     * Computes the authentication code of a stored entry, the key of the entry is covered as well so that an entry
+     * cannot be passed off as the bytecode of other code
+     *
+     * @param key     key of the entry
+     * @param content serialized entry
+     * @param length  length of the serialized entry
+     * @return HMAC-SHA256 of the key and the entry
+     * @throws IOException if the MAC is not supported
+     */
+    private byte[] authenticate(String key, byte[] content, int length) throws IOException {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(macKey);
+            mac.update((key + '\0').getBytes(StandardCharsets.UTF_8));
+            mac.update(content, 0, length);
+            return mac.doFinal();
+        } catch (GeneralSecurityException exception) {
+            throw new IOException("Unable to authenticate cached bytecode", exception);
+        }
+    }
+
+    /**
+     * Writes the entry to the directory followed by its authentication code. It is written to a temporary file first,
+     * so that a reader never sees a half written entry
+     *
+     * @param key   key of the entry
+     * @param entry compiled classes
+     */
+    private void store(String key, Entry entry) {
+        File file = new File(directory, key + ".classes");
+        File partialFile = new File(directory, key + ".partial");
+        try {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            DataOutputStream serializer = new DataOutputStream(content);
+            serializer.writeLong(entry.compileNanos);
+            serializer.writeInt(entry.classes.size());
+            for (Map.Entry<String, byte[]> compiledClass : entry.classes.entrySet()) {
+                serializer.writeUTF(compiledClass.getKey());
+                serializer.writeInt(compiledClass.getValue().length);
+                serializer.write(compiledClass.getValue());
+            }
+            byte[] serialized = content.toByteArray();
+
+            try (OutputStream output = new BufferedOutputStream(new FileOutputStream(partialFile))) {
+                output.write(serialized);
+                output.write(authenticate(key, serialized, serialized.length));
+            }
+            java.nio.file.Files.move(partialFile.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException exception) {
+            CustomLogger.log(Level.WARNING, "Unable to store compiled bytecode", exception);
+            partialFile.delete();
+        }
+    }
+
+    /**
+     * Gets the number of entries kept in memory
+     *
+     * @return number of compiled sources in memory
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Gets the total size of the bytecode kept in memory
+     *
+     * @return size in bytes
+     */
+    public synchronized long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    /**
+     * Getter for the hit count
+     *
+     * @return number of compilations skipped
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Getter for the miss count
+     *
+     * @return number of sources that had to be compiled
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Getter for the eviction count
+     *
+     * @return number of entries evicted from memory because the cache was full
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Gets the compile time saved by the cache, the original compile time of an entry is counted at every hit
+     *
+     * @return saved time in milliseconds
+     */
+    public long getSavedMillis() {
+        return savedNanos.get() / 1_000_000;
+    }
+
+    /**
+     * Gets the share of the compilations served from the cache
+     *
+     * @return hit rate between 0 and 1, or 0 if the cache has not been used yet
+     */
+    public double getHitRate() {
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+}
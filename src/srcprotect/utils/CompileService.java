@@ -0,0 +1,175 @@
+package srcprotect.utils;
+
+import srcprotect.utils.logging.CustomLogger;
+
+import javax.tools.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+
+/**
+ * Runs the compilations on a fixed number of workers, each with a file manager of its own that is kept open for as
+ * long as the service runs. The file manager caches the contents of the class path and of the platform classes, so only
+ * the first compilation on a worker pays for indexing them, and warming the workers up moves that cost, along with the
+ * loading and JIT compilation of the compiler itself, to the start of the application
+ */
+class CompileService {
+
+    private static final String WARM_UP_CLASS = "WarmUp";
+    private static final String WARM_UP_SOURCE = "import java.util.*;\n"
+            + "public class WarmUp {\n"
+            + "    public static void main(String[] args) {\n"
+            + "        List<String> values = new ArrayList<>(Arrays.asList(args));\n"
+            + "        values.sort(Comparator.naturalOrder());\n"
+            + "        System.out.println(String.join(\", \", values));\n"
+            + "    }\n"
+            + "}\n";
+
+    private final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    private final String classPath = System.getProperty("java.class.path");
+    private final ThreadPoolExecutor workers;
+
+    private final ThreadLocal<StandardJavaFileManager> fileManager = new ThreadLocal<>();
+    private final List<StandardJavaFileManager> fileManagers = new CopyOnWriteArrayList<>();
+
+    /**
+     * Creates the service, the workers are started on the first compilation or when warming up
+     *
+     * @param workerCount maximum number of compilations run at the same time
+     */
+    CompileService(int workerCount) {
+        workers = new ThreadPoolExecutor(workerCount, workerCount, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                runnable -> {
+                    Thread worker = new Thread(runnable, "compiler");
+                    worker.setDaemon(true);
+                    return worker;
+                });
+    }
+
+    /**
+     * Compiles the sources on one of the workers, the compiled classes are kept in memory
+     *
+     * @param sources     compilation units
+     * @param diagnostics receives the errors and warnings of the compilation
+     * @return pending bytecode by binary class name, completed with null if the sources do not compile
+     */
+    CompletableFuture<Map<String, byte[]>> compile(List<? extends JavaFileObject> sources,
+                                                   DiagnosticListener<? super JavaFileObject> diagnostics) {
+        CompletableFuture<Map<String, byte[]>> result = new CompletableFuture<>();
+        workers.execute(() -> {
+            try {
+                result.complete(compileOnWorker(sources, diagnostics));
+            } catch (IOException | RuntimeException exception) {
+                result.completeExceptionally(exception);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Starts every worker and has it compile a small class in the background, so that the first real compilation
+     * does not pay for starting the compiler
+     */
+    void warmUp() {
+        int workerCount = workers.getCorePoolSize();
+        CountDownLatch started = new CountDownLatch(workerCount);
+        for (int index = 0; index < workerCount; ++index) {
+            workers.execute(() -> {
+                /* Every worker takes exactly one warm-up task, so that each of them warms up its own file manager */
+                started.countDown();
+                try {
+                    started.await();
+                    compileOnWorker(
+                            Collections.singletonList(InMemoryFileManager.source(WARM_UP_CLASS, WARM_UP_SOURCE.toCharArray())),
+                            null
+                    );
+                } catch (InterruptedException exception) {
+                    Thread.currentThread().interrupt();
+                } catch (IOException | RuntimeException exception) {
+                    CustomLogger.log(Level.WARNING, "Unable to warm up the compiler", exception);
+                }
+            });
+        }
+    }
+
+    /**
+     * Stops accepting compilations, waits for the running ones to finish and closes the file managers
+     */
+    void shutdown() {
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(10, TimeUnit.SECONDS)) {
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException exception) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        for (StandardJavaFileManager standardFileManager : fileManagers) {
+            try {
+                standardFileManager.close();
+            } catch (IOException exception) {
+                CustomLogger.log(Level.WARNING, "Unable to close the file manager", exception);
+            }
+        }
+        fileManagers.clear();
+    }
+
+    /**
+     * Gets the options every compilation is equivalent to. The class path is set on the file managers once instead of
+     * being passed with every compilation, which would make them index it again
+     *
+     * @return compiler options
+     */
+    List<String> getOptions() {
+        return Arrays.asList("-classpath", classPath);
+    }
+
+    /**
+     * Compiles the sources with the file manager of the current worker
+     *
+     * @param sources     compilation units
+     * @param diagnostics receives the errors and warnings of the compilation, or null to print them
+     * @return bytecode by binary class name, or null if the sources do not compile
+     * @throws IOException if unable to set up the file manager
+     */
+    private Map<String, byte[]> compileOnWorker(List<? extends JavaFileObject> sources,
+                                                DiagnosticListener<? super JavaFileObject> diagnostics) throws IOException {
+        /* The in-memory file manager is not closed, closing it would close the shared one it forwards to */
+        InMemoryFileManager inMemoryFileManager = new InMemoryFileManager(getFileManager());
+        if (!compiler.getTask(null, inMemoryFileManager, diagnostics, null, null, sources).call()) {
+            return null;
+        }
+        return inMemoryFileManager.getClasses();
+    }
+
+    /**
+     * Gets the file manager of the current worker, creating it on the first compilation
+     *
+     * @return file manager with the class path set
+     * @throws IOException if unable to set the class path
+     */
+    private StandardJavaFileManager getFileManager() throws IOException {
+        StandardJavaFileManager standardFileManager = fileManager.get();
+        if (standardFileManager == null) {
+            standardFileManager = compiler.getStandardFileManager(null, null, StandardCharsets.UTF_8);
+
+            List<File> classPathEntries = new ArrayList<>();
+            for (String entry : classPath.split(File.pathSeparator)) {
+                if (!entry.isEmpty()) {
+                    classPathEntries.add(new File(entry));
+                }
+            }
+            standardFileManager.setLocation(StandardLocation.CLASS_PATH, classPathEntries);
+
+            fileManager.set(standardFileManager);
+            fileManagers.add(standardFileManager);
+        }
+        return standardFileManager;
+    }
+
+}
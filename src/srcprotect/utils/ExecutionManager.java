@@ -0,0 +1,494 @@
+package srcprotect.utils;
+
+import srcprotect.utils.logging.CustomLogger;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * Runs compiled programs with bounded resources. At most a fixed number of programs run at the same time, the rest wait
+ * in the queue. Every run gets a class loader and a thread group of its own, it is stopped once it exceeds the wall clock
+ * or the CPU time limit, and its standard output and error are captured. Once a run has finished, nothing refers to its
+ * class loader any more, so its classes can be unloaded
+ * <p>
+ * The limits cover every thread the program starts, as they all belong to the thread group of the run. A run ends when
+ * its main method returns: the threads it leaves behind are stopped the same way as a run over its limits
+ * <p>
+ * The CPU time and allocations of a run are sampled: the main thread is measured when it ends, while the other threads
+ * are only measured at every poll of the supervisor. A thread loses whatever it used since the last poll before it
+ * ended, and a thread that lives shorter than a poll is not counted at all. The figures are therefore lower bounds,
+ * and a program that keeps starting short lived threads can stay under the CPU time limit, the wall clock limit still
+ * bounds such a run
+ */
+public class ExecutionManager {
+
+    /**
+     * How a run ended
+     */
+    public enum Status {
+        COMPLETED,
+        FAILED,
+        TIMED_OUT,
+        CPU_TIME_EXCEEDED,
+        CANCELLED
+    }
+
+    /**
+     * Outcome of a single run along with the resources it used
+     */
+    public static class Result {
+
+        private final String entryPoint;
+        private final Status status;
+        private final long wallNanos;
+        private final long cpuNanos;
+        private final long allocatedBytes;
+        private final String output;
+        private final String errorOutput;
+        private final String failure;
+
+        private Result(String entryPoint, Status status, long wallNanos, Run run) {
+            this.entryPoint = entryPoint;
+            this.status = status;
+            this.wallNanos = wallNanos;
+            cpuNanos = Run.total(run.cpuNanos);
+            allocatedBytes = Run.total(run.allocatedBytes);
+            output = run.output.toString();
+            errorOutput = run.errorOutput.toString();
+            failure = run.failure;
+        }
+
+        /**
+         * Getter for the entry point
+         *
+         * @return binary name of the class whose main method was run
+         */
+        public String getEntryPoint() {
+            return entryPoint;
+        }
+
+        /**
+         * Getter for the status
+         *
+         * @return how the run ended
+         */
+        public Status getStatus() {
+            return status;
+        }
+
+        /**
+         * Getter for the wall clock time
+         *
+         * @return time from the start to the end of the run in milliseconds
+         */
+        public long getWallMillis() {
+            return wallNanos / 1_000_000;
+        }
+
+        /**
+         * Getter for the CPU time
+         *
+         * @return CPU time sampled from the threads of the run in milliseconds, a lower bound of the CPU time it used,
+         * or -1 if it cannot be measured
+         */
+        public long getCpuMillis() {
+            return cpuNanos < 0 ? -1 : cpuNanos / 1_000_000;
+        }
+
+        /**
+         * Getter for the allocated bytes
+         *
+         * @return bytes sampled from the threads of the run, a lower bound of the bytes it allocated, or -1 if they
+         * cannot be measured
+         */
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+
+        /**
+         * Getter for the standard output
+         *
+         * @return everything the program printed to the standard output, up to the output limit
+         */
+        public String getOutput() {
+            return output;
+        }
+
+        /**
+         * Getter for the standard error
+         *
+         * @return everything the program printed to the standard error, up to the output limit
+         */
+        public String getErrorOutput() {
+            return errorOutput;
+        }
+
+        /**
+         * Getter for the failure
+         *
+         * @return stack trace of the exception the program ended with, or null if it did not throw one
+         */
+        public String getFailure() {
+            return failure;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %s in %d ms, CPU %d ms, allocated %d KB",
+                    entryPoint, status, getWallMillis(), getCpuMillis(),
+                    allocatedBytes < 0 ? -1 : allocatedBytes / 1024);
+        }
+
+    }
+
+    /**
+     * Output of a run, anything beyond the limit is dropped
+     */
+    private static class BoundedBuffer {
+
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private final int limit;
+        private boolean truncated;
+
+        private BoundedBuffer(int limit) {
+            this.limit = limit;
+        }
+
+        private synchronized void write(byte[] bytes, int offset, int length) {
+            int accepted = Math.min(length, limit - buffer.size());
+            if (accepted > 0) {
+                buffer.write(bytes, offset, accepted);
+            }
+            truncated |= accepted < length;
+        }
+
+        @Override
+        public synchronized String toString() {
+            String text = new String(buffer.toByteArray(), StandardCharsets.UTF_8);
+            return truncated ? text + System.getProperty("line.separator") + "[output truncated]" : text;
+        }
+
+    }
+
+    /**
+     * State of a run, shared by the thread running the program and the runner supervising it
+     */
+    private static class Run {
+
+        private final BoundedBuffer output;
+        private final BoundedBuffer errorOutput;
+        /* Latest measurement of every thread of the run, a thread keeps its last one after it has ended */
+        private final Map<Long, Long> cpuNanos = new ConcurrentHashMap<>();
+        private final Map<Long, Long> allocatedBytes = new ConcurrentHashMap<>();
+        private volatile String failure;
+
+        private Run(int outputLimit) {
+            output = new BoundedBuffer(outputLimit);
+            errorOutput = new BoundedBuffer(outputLimit);
+        }
+
+        /**
+         * Sums the latest measurements of the threads of the run
+         *
+         * @param usage measurement by thread identifier
+         * @return total, or -1 if the runtime does not measure it
+         */
+        private static long total(Map<Long, Long> usage) {
+            if (usage.isEmpty()) {
+                return -1;
+            }
+            long total = 0;
+            for (long value : usage.values()) {
+                total += value;
+            }
+            return total;
+        }
+
+    }
+
+    /**
+     * Sends what a thread prints to the buffer of the run the thread belongs to, as well as to the original stream
+     */
+    private static class RoutingStream extends OutputStream {
+
+        private final PrintStream original;
+        private final boolean error;
+
+        private RoutingStream(PrintStream original, boolean error) {
+            this.original = original;
+            this.error = error;
+        }
+
+        @Override
+        public void write(int value) {
+            write(new byte[]{(byte) value}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            Run run = CURRENT_RUN.get();
+            if (run != null) {
+                (error ? run.errorOutput : run.output).write(bytes, offset, length);
+            }
+            original.write(bytes, offset, length);
+        }
+
+        @Override
+        public void flush() {
+            original.flush();
+        }
+
+    }
+
+    /* Threads started by a program belong to its run as well */
+    private static final InheritableThreadLocal<Run> CURRENT_RUN = new InheritableThreadLocal<>();
+
+    private static final long POLL_MILLIS = 20;
+    private static final long GRACE_MILLIS = 1000;
+
+    static {
+        System.setOut(new PrintStream(new RoutingStream(System.out, false), true));
+        System.setErr(new PrintStream(new RoutingStream(System.err, true), true));
+    }
+
+    private final ThreadPoolExecutor runners;
+    private final long wallTimeoutNanos;
+    private final long cpuTimeoutNanos;
+    private final int outputLimit;
+
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final AtomicInteger runCount = new AtomicInteger();
+
+    /**
+     * Creates an execution manager
+     *
+     * @param runnerCount       maximum number of programs run at the same time
+     * @param wallTimeoutMillis maximum wall clock time of a run, or 0 for no limit
+     * @param cpuTimeoutMillis  maximum CPU time sampled from the threads of a run together, or 0 for no limit
+     * @param outputLimit       maximum number of bytes captured from each of the output streams of a run
+     */
+    public ExecutionManager(int runnerCount, long wallTimeoutMillis, long cpuTimeoutMillis, int outputLimit) {
+        this.wallTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(wallTimeoutMillis);
+        this.cpuTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(cpuTimeoutMillis);
+        this.outputLimit = outputLimit;
+
+        if (threads.isThreadCpuTimeSupported() && !threads.isThreadCpuTimeEnabled()) {
+            threads.setThreadCpuTimeEnabled(true);
+        }
+
+        runners = new ThreadPoolExecutor(runnerCount, runnerCount, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                runnable -> {
+                    Thread runner = new Thread(runnable, "code-runner");
+                    runner.setDaemon(true);
+                    return runner;
+                });
+    }
+
+    /**
+     * Queues a run of the main method of the entry point
+     *
+     * @param classes    bytecode by binary class name, loaded by a class loader used only for this run
+     * @param entryPoint binary name of the class with the main method
+     * @param args       arguments passed to the main method
+     * @return pending result of the run
+     */
+    public CompletableFuture<Result> submit(Map<String, byte[]> classes, String entryPoint, String[] args) {
+        CompletableFuture<Result> result = new CompletableFuture<>();
+        runners.execute(() -> result.complete(supervise(classes, entryPoint, args)));
+        return result;
+    }
+
+    /**
+     * Stops accepting runs and stops the running ones
+     */
+    public void shutdown() {
+        runners.shutdownNow();
+    }
+
+    /**
+     * Starts the run in a thread group of its own and waits until none of its threads is left, stopping them once the
+     * run exceeds a limit, is cancelled, or its main method returns. The threads are interrupted first, and the ones
+     * still running after a grace period are stopped forcibly. Threads that cannot be stopped either are given up on
+     * after another grace period, they are daemons so they do not keep the application running
+     *
+     * @param classes    bytecode by binary class name
+     * @param entryPoint binary name of the class with the main method
+     * @param args       arguments passed to the main method
+     * @return result of the run
+     */
+    private Result supervise(Map<String, byte[]> classes, String entryPoint, String[] args) {
+        Run run = new Run(outputLimit);
+        ThreadGroup group = new ThreadGroup("run-" + runCount.incrementAndGet());
+        Thread main = new Thread(group, () -> execute(run, classes, entryPoint, args), group.getName() + "-main");
+        main.setDaemon(true);
+
+        long start = System.nanoTime();
+        main.start();
+
+        Status limit = null;
+        boolean stopping = false;
+        boolean stopped = false;
+        boolean cancelled = false;
+        long deadline = 0;
+        for (Thread[] runThreads = enumerate(group); runThreads.length > 0; runThreads = enumerate(group)) {
+            for (Thread thread : runThreads) {
+                measure(run, thread.getId());
+            }
+            long now = System.nanoTime();
+
+            if (!stopping) {
+                if (cancelled) {
+                    limit = Status.CANCELLED;
+                } else if (wallTimeoutNanos > 0 && now - start > wallTimeoutNanos) {
+                    limit = Status.TIMED_OUT;
+                } else if (cpuTimeoutNanos > 0 && Run.total(run.cpuNanos) > cpuTimeoutNanos) {
+                    limit = Status.CPU_TIME_EXCEEDED;
+                }
+
+                /* The threads left behind by the main method are stopped like the threads of a run over its limits */
+                if (limit != null || !main.isAlive()) {
+                    group.interrupt();
+                    stopping = true;
+                    deadline = now + TimeUnit.MILLISECONDS.toNanos(GRACE_MILLIS);
+                }
+            } else if (now > deadline) {
+                if (stopped) {
+                    CustomLogger.log(Level.WARNING, "Giving up on the threads of " + group.getName(),
+                            new IllegalStateException(runThreads.length + " threads could not be stopped"));
+                    break;
+                }
+                stop(runThreads);
+                stopped = true;
+                deadline = now + TimeUnit.MILLISECONDS.toNanos(GRACE_MILLIS);
+            }
+
+            try {
+                if (main.isAlive()) {
+                    main.join(POLL_MILLIS);
+                } else {
+                    Thread.sleep(POLL_MILLIS);
+                }
+            } catch (InterruptedException exception) {
+                cancelled = true;
+            }
+        }
+
+        if (cancelled) {
+            Thread.currentThread().interrupt();
+        }
+        Status status = limit != null ? limit : run.failure != null ? Status.FAILED : Status.COMPLETED;
+        return new Result(entryPoint, status, System.nanoTime() - start, run);
+    }
+
+    /**
+     * Loads the entry point and runs its main method, then records the resources used by the thread. Runs on the
+     * main thread of the run
+     *
+     * @param run        state of the run
+     * @param classes    bytecode by binary class name
+     * @param entryPoint binary name of the class with the main method
+     * @param args       arguments passed to the main method
+     */
+    private void execute(Run run, Map<String, byte[]> classes, String entryPoint, String[] args) {
+        CURRENT_RUN.set(run);
+
+        ClassLoader classLoader = new ByteArrayClassLoader(classes, ExecutionManager.class.getClassLoader());
+        Thread.currentThread().setContextClassLoader(classLoader);
+        try {
+            Method main = classLoader.loadClass(entryPoint).getMethod("main", String[].class);
+            /* Like the java launcher, the class declaring main does not have to be public */
+            main.setAccessible(true);
+            main.invoke(null, (Object) args);
+        } catch (InvocationTargetException exception) {
+            run.failure = getStackTrace(exception.getCause());
+        } catch (ReflectiveOperationException | LinkageError exception) {
+            run.failure = getStackTrace(exception);
+        } finally {
+            /* The supervisor might not measure the thread again before it ends */
+            measure(run, Thread.currentThread().getId());
+
+            Thread.currentThread().setContextClassLoader(null);
+            CURRENT_RUN.remove();
+        }
+    }
+
+    /**
+     * Records the CPU time and the allocations of a thread of the run, unless the thread has already ended
+     *
+     * @param run      state of the run
+     * @param threadId identifier of the thread
+     */
+    private void measure(Run run, long threadId) {
+        if (threads.isThreadCpuTimeSupported()) {
+            long cpuNanos = threads.getThreadCpuTime(threadId);
+            if (cpuNanos >= 0) {
+                run.cpuNanos.merge(threadId, cpuNanos, Math::max);
+            }
+        }
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+            if (allocations.isThreadAllocatedMemorySupported() && allocations.isThreadAllocatedMemoryEnabled()) {
+                long allocatedBytes = allocations.getThreadAllocatedBytes(threadId);
+                if (allocatedBytes >= 0) {
+                    run.allocatedBytes.merge(threadId, allocatedBytes, Math::max);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the threads of the run that are still alive, including the ones in the thread groups the program created
+     *
+     * @param group thread group of the run
+     * @return live threads of the run
+     */
+    private static Thread[] enumerate(ThreadGroup group) {
+        Thread[] runThreads;
+        int count;
+        do {
+            runThreads = new Thread[group.activeCount() * 2 + 1];
+            count = group.enumerate(runThreads);
+        } while (count == runThreads.length);
+        return Arrays.copyOf(runThreads, count);
+    }
+
+    /**
+     * Forcibly stops the threads of the run. This is the only way to end a program that ignores interrupts without
+     * leaving it running, and is not supported by every runtime
+     *
+     * @param runThreads live threads of the run
+     */
+    @SuppressWarnings("deprecation")
+    private static void stop(Thread[] runThreads) {
+        for (Thread thread : runThreads) {
+            try {
+                thread.stop();
+            } catch (UnsupportedOperationException exception) {
+                CustomLogger.log(Level.WARNING, "Unable to stop " + thread.getName(), exception);
+            }
+        }
+    }
+
+    /**
+     * Formats the stack trace of the exception, so that the result does not keep the exception and the classes it
+     * refers to reachable
+     *
+     * @param throwable exception the program ended with
+     * @return stack trace as text
+     */
+    private static String getStackTrace(Throwable throwable) {
+        StringWriter stackTrace = new StringWriter();
+        throwable.printStackTrace(new PrintWriter(stackTrace));
+        return stackTrace.toString();
+    }
+
+}
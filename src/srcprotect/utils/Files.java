@@ -34,6 +34,11 @@ public class Files {
                     + "CRL.crl"
     );
 
+    private static final File COMPILATION_CACHE_DIR = new File(
+            APP_ROOT_DIR + File.separator
+                    + "CompilationCache"
+    );
+
     private static final File LOG_FILE = new File(
             APP_ROOT_DIR + File.separator
                     + "log_file.log"
@@ -71,6 +76,15 @@ public class Files {
         return new File(CA_DIRECTORY + File.separator + "CA_key.pem");
     }
 
+    /**
+     * Getter for the file holding the end of the latest reserved block of certificate serial numbers
+     *
+     * @return location of the serial number file on the file system
+     */
+    public static File getSerialNumberFile() {
+        return new File(CA_DIRECTORY + File.separator + "serial.txt");
+    }
+
     /**
      * Getter for the file containing the list of all users
      *
@@ -121,6 +135,43 @@ public class Files {
         return CRL_FILE;
     }
 
+    /**
+     * Getter for the delta CRL file location
+     *
+     * @return location of the delta CRL file on the file system
+     */
+    public static File getDeltaCRLFile() {
+        return new File(CA_DIRECTORY + File.separator + "CRL_delta.crl");
+    }
+
+    /**
+     * Getter for the revocation log location
+     *
+     * @return location of the log of the revocations not published in a base CRL yet
+     */
+    public static File getRevocationLogFile() {
+        return new File(CA_DIRECTORY + File.separator + "revocations.log");
+    }
+
+    /**
+     * Getter for the compilation cache directory location, the directory is created only if the cache uses it
+     *
+     * @return location of the compiled bytecode cache on the file system
+     */
+    public static File getCompilationCacheDir() {
+        return COMPILATION_CACHE_DIR;
+    }
+
+    /**
+     * Getter for the location of the key the stored compiled bytecode is authenticated with, it is kept outside of
+     * the cache directory
+     *
+     * @return location of the compilation cache key on the file system
+     */
+    public static File getCompilationCacheKeyFile() {
+        return new File(APP_ROOT_DIR + File.separator + "compilation_cache.key");
+    }
+
     /**
      * Getter for the log file location
      *
@@ -0,0 +1,107 @@
+package srcprotect.utils;
+
+import javax.tools.*;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * File manager that keeps the compiled classes in memory instead of writing them next to the sources. Together with
+ * the in-memory sources created by {@link #source(String, char[])}, the code goes from the decrypted bytes to the
+ * loaded classes without touching the disk. Classes on the class path are still looked up by the standard file manager
+ */
+class InMemoryFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+
+    /**
+     * Source code held in memory, the content can be wiped once it has been compiled
+     */
+    static class SourceObject extends SimpleJavaFileObject {
+
+        private final char[] content;
+
+        private SourceObject(String className, char[] content) {
+            super(URI.create("string:///" + className.replace('.', '/') + Kind.SOURCE.extension), Kind.SOURCE);
+            this.content = content;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return CharBuffer.wrap(content);
+        }
+
+        /**
+         * Overwrites the source code with zeros
+         */
+        void wipe() {
+            Arrays.fill(content, '\0');
+        }
+
+    }
+
+    /**
+     * Bytecode of a single compiled class, written by the compiler into memory
+     */
+    private static class ClassObject extends SimpleJavaFileObject {
+
+        private final ByteArrayOutputStream bytecode = new ByteArrayOutputStream();
+
+        private ClassObject(String className) {
+            super(URI.create("bytes:///" + className.replace('.', '/') + Kind.CLASS.extension), Kind.CLASS);
+        }
+
+        @Override
+        public OutputStream openOutputStream() {
+            bytecode.reset();
+            return bytecode;
+        }
+
+    }
+
+    private final Map<String, ClassObject> classes = new LinkedHashMap<>();
+
+    /**
+     * Wraps the standard file manager
+     *
+     * @param fileManager file manager used to look up the classes on the class path
+     */
+    InMemoryFileManager(StandardJavaFileManager fileManager) {
+        super(fileManager);
+    }
+
+    /**
+     * Creates a compilation unit held in memory
+     *
+     * @param className binary name of the top-level class declared by the source, without the extension
+     * @param content   source code, used as is without copying
+     * @return compilation unit
+     */
+    static SourceObject source(String className, char[] content) {
+        return new SourceObject(className, content);
+    }
+
+    @Override
+    public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind,
+                                               FileObject sibling) {
+        ClassObject classObject = new ClassObject(className);
+        classes.put(className, classObject);
+        return classObject;
+    }
+
+    /**
+     * Gets the bytecode of every class produced by the compilations run with this file manager
+     *
+     * @return bytecode by binary class name
+     */
+    Map<String, byte[]> getClasses() {
+        Map<String, byte[]> bytecode = new LinkedHashMap<>();
+        for (Map.Entry<String, ClassObject> entry : classes.entrySet()) {
+            bytecode.put(entry.getKey(), entry.getValue().bytecode.toByteArray());
+        }
+        return bytecode;
+    }
+
+}